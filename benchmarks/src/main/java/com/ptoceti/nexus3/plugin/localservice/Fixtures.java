@@ -0,0 +1,57 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
+import org.sonatype.nexus.repository.search.SearchService;
+import org.sonatype.nexus.repository.manager.RepositoryManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Bundled fixture files and a resource wired with the real helpers, so that benchmarks run without a nexus.
+ */
+class Fixtures {
+
+    static final String SMALL = "small-maven-metadata.xml";
+    static final String LARGE = "large-maven-metadata.xml";
+    static final String LARGE_NO_LATEST = "large-nolatest-maven-metadata.xml";
+    static final String SNAPSHOT = "snapshot-maven-metadata.xml";
+
+    private Fixtures() {
+    }
+
+    static byte[] bytes(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("missing fixture " + name);
+            }
+            return IOUtil.toByteArray(in);
+        }
+    }
+
+    static Metadata metadata(String name) throws Exception {
+        return new MetadataXpp3Reader().read(new ByteArrayInputStream(bytes(name)), false);
+    }
+
+    /**
+     * Resource with its default configuration. Nothing is started: the benchmarks only use code that does not
+     * go to the storage, the loopback client or the group executor.
+     */
+    static LocalServiceResource resource() {
+        LoopbackHttpClient loopbackHttpClient = new LoopbackHttpClient(50, 2000, 60000, 5000, 30);
+        RepositoryManager repositoryManager = mock(RepositoryManager.class);
+        return new LocalServiceResource(new ArtifactSearch(mock(SearchService.class), 10000, 30), repositoryManager,
+                new MetaDataHelper(loopbackHttpClient, new RemoteMetadataGuard(8, 10000, "", 5, 30, 10000, 1440), 100000, 60),
+                new GroupMemberLookup(16, 4), new ResolvedVersionCache(10000, 1440), new LastDownloadedRecorder(60),
+                new LocalServiceMetrics(new MetricRegistry(), loopbackHttpClient), new VersionIndex(repositoryManager, true, 100000), new RequestExecutor(1, 16, 120),
+                new ContentArchiver(16, 4), new HotSet(mock(ApplicationDirectories.class), () -> null, false, 1000, 10, 4),
+                true, 1000, 86400, 60, 30, true);
+    }
+}
@@ -0,0 +1,512 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Snapshot;
+import org.apache.maven.artifact.repository.metadata.SnapshotVersion;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.collect.DetachingMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.entity.DetachedEntityId;
+import org.sonatype.nexus.common.entity.EntityId;
+import org.sonatype.nexus.common.entity.EntityMetadata;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
+import org.sonatype.nexus.repository.Format;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.Type;
+import org.sonatype.nexus.repository.config.Configuration;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.manager.RepositoryManager;
+import org.sonatype.nexus.repository.maven.MavenFacet;
+import org.sonatype.nexus.repository.maven.MavenPath;
+import org.sonatype.nexus.repository.maven.internal.Attributes;
+import org.sonatype.nexus.repository.maven.internal.Attributes.AssetKind;
+import org.sonatype.nexus.repository.search.SearchService;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.Query;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.types.HostedType;
+import org.sonatype.nexus.repository.types.ProxyType;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.ViewFacet;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * In memory stand-ins of the nexus services the resource works with, for the load driver: repository manager,
+ * repositories with their storage, maven, view and group facets, and search. Each kind of stand-in answers after its
+ * own {@link Latency}. The stand-ins are stub-only mocks answering from in memory maps: they record no invocation, so
+ * they can take millions of calls.
+ *
+ * Repositories: hosted releases and snapshots, proxy central, and group public of the three.
+ * <ul>
+ * <li>releases has {@code components} components com.ptoceti.load:artifact-N, versions 1.0.0 to 1.0.4</li>
+ * <li>snapshots has the same components in version 2.0.0-SNAPSHOT, one timestamped build</li>
+ * <li>central has as many components org.example.remote:remote-N, versions 3.0.0 to 3.0.4, whose metadata is
+ * upstream only (served by {@link MetadataHttpStub}); even components are cached in storage, odd ones are only
+ * upstream and come through the view, never cached so that each request takes the same path</li>
+ * </ul>
+ * Each version has a jar, a pom and a sources jar, all with the same content. Search has no hit: the index holds
+ * what storage holds, and it is only asked for what storage does not have.
+ */
+class InMemoryRepositories {
+
+    static final String RELEASES = "releases";
+    static final String SNAPSHOTS = "snapshots";
+    static final String CENTRAL = "central";
+    static final String PUBLIC = "public";
+
+    static final String LOCAL_GROUP_ID = "com.ptoceti.load";
+    static final String REMOTE_GROUP_ID = "org.example.remote";
+    static final List<String> RELEASE_VERSIONS = Arrays.asList("1.0.0", "1.0.1", "1.0.2", "1.0.3", "1.0.4");
+    static final List<String> REMOTE_VERSIONS = Arrays.asList("3.0.0", "3.0.1", "3.0.2", "3.0.3", "3.0.4");
+    static final String SNAPSHOT_VERSION = "2.0.0-SNAPSHOT";
+
+    private static final String SNAPSHOT_TIMESTAMP = "20181020.103015";
+    private static final int SNAPSHOT_BUILD_NUMBER = 7;
+    private static final String LAST_UPDATED = "20181020103015";
+    private static final Date LAST_MODIFIED = new Date(1540031415000L);
+
+    /**
+     * classifier and extension of the assets of each version
+     */
+    private static final String[][] FILES = {{null, "jar"}, {null, "pom"}, {"sources", "jar"}};
+
+    private static final Format MAVEN2 = new Format("maven2") {
+    };
+
+    /**
+     * field = :param or field IN :param, in the where clause of a query
+     */
+    private static final Pattern CRITERION = Pattern.compile("([\\w.]+)\\s*(?:=|IN)\\s*:(\\w+)", Pattern.CASE_INSENSITIVE);
+    private static final String ASSET_ATTRIBUTES = "attributes.maven2.";
+
+    /**
+     * Time each kind of stand-in takes to answer.
+     */
+    static final class Latencies {
+        final Latency manager;
+        final Latency storage;
+        final Latency metadata;
+        final Latency search;
+        final Latency view;
+        final Latency http;
+
+        Latencies(Latency manager, Latency storage, Latency metadata, Latency search, Latency view, Latency http) {
+            this.manager = manager;
+            this.storage = storage;
+            this.metadata = metadata;
+            this.search = search;
+            this.view = view;
+            this.http = http;
+        }
+    }
+
+    private final int components;
+    private final Latencies latencies;
+    private final byte[] content;
+    private final Map<String, Object> proxyAttributes = new HashMap<>();
+
+    private final Map<String, Repository> repositories = new LinkedHashMap<>();
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    /**
+     * repository name to groupId:artifactId:version to assets
+     */
+    private final Map<String, Map<String, List<Asset>>> assets = new HashMap<>();
+    /**
+     * repository name to path to maven-metadata.xml in storage
+     */
+    private final Map<String, Map<String, byte[]>> localMetadata = new HashMap<>();
+    private final Map<String, Map<String, byte[]>> upstreamMetadata = new HashMap<>();
+    private final Map<String, Set<String>> upstreamArtifacts = new HashMap<>();
+
+    private final StorageTx tx;
+    private final Blob blob;
+    private final RepositoryManager repositoryManager;
+    private final SearchService searchService;
+
+    /**
+     * @param components     components in each of releases, snapshots and central
+     * @param contentBytes   size of each artifact
+     * @param metadataMaxAge metadata max age of the proxy, minutes
+     */
+    InMemoryRepositories(int components, int contentBytes, int metadataMaxAge, Latencies latencies) throws Exception {
+        this.components = components;
+        this.latencies = latencies;
+        this.content = new byte[contentBytes];
+        new Random(42).nextBytes(content);
+        proxyAttributes.put("metadataMaxAge", metadataMaxAge);
+
+        blob = stub(Blob.class);
+        when(blob.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(content));
+        when(blob.getHeaders()).thenReturn(Collections.singletonMap("BlobStore.content-type", "application/java-archive"));
+
+        tx = stub(StorageTx.class);
+        when(tx.findAssets(any(Query.class), any())).thenAnswer(invocation ->
+                findAssets((Query) invocation.getArguments()[0], (Iterable<Repository>) invocation.getArguments()[1]));
+        when(tx.findBuckets(any())).thenAnswer(invocation ->
+                findBuckets((Iterable<Repository>) invocation.getArguments()[0]));
+        when(tx.requireBlob(any(BlobRef.class))).thenReturn(blob);
+
+        Repository releases = repository(RELEASES, new HostedType(), null);
+        Repository snapshots = repository(SNAPSHOTS, new HostedType(), null);
+        Repository central = repository(CENTRAL, new ProxyType(), null);
+        repository(PUBLIC, new GroupType(), Arrays.asList(releases, snapshots, central));
+
+        for (int i = 0; i < components; i++) {
+            String artifactId = localArtifactId(i);
+            for (String version : RELEASE_VERSIONS) {
+                addComponent(RELEASES, LOCAL_GROUP_ID, artifactId, version, version);
+            }
+            putMetadata(localMetadata, RELEASES, LOCAL_GROUP_ID, artifactId, null,
+                    artifactMetadata(LOCAL_GROUP_ID, artifactId, RELEASE_VERSIONS, last(RELEASE_VERSIONS)));
+
+            addComponent(SNAPSHOTS, LOCAL_GROUP_ID, artifactId, SNAPSHOT_VERSION, timestampedVersion());
+            putMetadata(localMetadata, SNAPSHOTS, LOCAL_GROUP_ID, artifactId, null,
+                    artifactMetadata(LOCAL_GROUP_ID, artifactId, Collections.singletonList(SNAPSHOT_VERSION), null));
+            putMetadata(localMetadata, SNAPSHOTS, LOCAL_GROUP_ID, artifactId, SNAPSHOT_VERSION,
+                    snapshotMetadata(LOCAL_GROUP_ID, artifactId));
+
+            String remoteArtifactId = remoteArtifactId(i);
+            for (String version : REMOTE_VERSIONS) {
+                if (i % 2 == 0) {
+                    addComponent(CENTRAL, REMOTE_GROUP_ID, remoteArtifactId, version, version);
+                } else {
+                    addUpstreamComponent(CENTRAL, remoteArtifactId, version);
+                }
+            }
+            putMetadata(upstreamMetadata, CENTRAL, REMOTE_GROUP_ID, remoteArtifactId, null,
+                    artifactMetadata(REMOTE_GROUP_ID, remoteArtifactId, REMOTE_VERSIONS, last(REMOTE_VERSIONS)));
+        }
+
+        repositoryManager = stub(RepositoryManager.class);
+        when(repositoryManager.get(anyString())).thenAnswer(invocation -> {
+            latencies.manager.pause();
+            return repositories.get(invocation.getArguments()[0]);
+        });
+        when(repositoryManager.browse()).thenReturn(repositories.values());
+
+        SearchHits hits = stub(SearchHits.class);
+        when(hits.hits()).thenReturn(new SearchHit[0]);
+        SearchResponse noHit = stub(SearchResponse.class);
+        when(noHit.getHits()).thenReturn(hits);
+        searchService = stub(SearchService.class);
+        when(searchService.search(any(), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            latencies.search.pause();
+            return noHit;
+        });
+    }
+
+    static String localArtifactId(int index) {
+        return "artifact-" + index;
+    }
+
+    static String remoteArtifactId(int index) {
+        return "remote-" + index;
+    }
+
+    static String timestampedVersion() {
+        return SNAPSHOT_VERSION.replace("SNAPSHOT", SNAPSHOT_TIMESTAMP + "-" + SNAPSHOT_BUILD_NUMBER);
+    }
+
+    int components() {
+        return components;
+    }
+
+    int contentBytes() {
+        return content.length;
+    }
+
+    RepositoryManager repositoryManager() {
+        return repositoryManager;
+    }
+
+    SearchService searchService() {
+        return searchService;
+    }
+
+    /**
+     * maven-metadata.xml of a proxy repository upstream, null if none.
+     */
+    byte[] upstreamMetadata(String repositoryName, String path) {
+        Map<String, byte[]> metadata = upstreamMetadata.get(repositoryName);
+        return metadata != null ? metadata.get(path) : null;
+    }
+
+    private Repository repository(String name, Type type, List<Repository> members) throws Exception {
+        Repository repository = stub(Repository.class);
+        when(repository.getName()).thenReturn(name);
+        when(repository.getFormat()).thenReturn(MAVEN2);
+        when(repository.getType()).thenReturn(type);
+        when(repository.getUrl()).thenReturn("http://localhost:8081/repository/" + name);
+
+        Configuration configuration = stub(Configuration.class);
+        when(configuration.attributes("proxy")).thenReturn(new NestedAttributesMap("proxy", proxyAttributes));
+        when(repository.getConfiguration()).thenReturn(configuration);
+
+        StorageFacet storageFacet = stub(StorageFacet.class);
+        when(storageFacet.txSupplier()).thenReturn(() -> tx);
+        when(repository.facet(StorageFacet.class)).thenReturn(storageFacet);
+
+        MavenFacet mavenFacet = stub(MavenFacet.class);
+        when(mavenFacet.get(any(MavenPath.class))).thenAnswer(invocation ->
+                localMetadata(name, (MavenPath) invocation.getArguments()[0]));
+        when(repository.facet(MavenFacet.class)).thenReturn(mavenFacet);
+
+        ViewFacet viewFacet = stub(ViewFacet.class);
+        when(viewFacet.dispatch(any(Request.class))).thenAnswer(invocation ->
+                dispatch(name, members, (Request) invocation.getArguments()[0]));
+        when(repository.facet(ViewFacet.class)).thenReturn(viewFacet);
+
+        if (members != null) {
+            GroupFacet groupFacet = stub(GroupFacet.class);
+            when(groupFacet.leafMembers()).thenReturn(members);
+            when(repository.facet(GroupFacet.class)).thenReturn(groupFacet);
+        }
+
+        EntityMetadata bucketMetadata = stub(EntityMetadata.class);
+        when(bucketMetadata.getId()).thenReturn(new DetachedEntityId(name));
+        Bucket bucket = stub(Bucket.class);
+        when(bucket.getEntityMetadata()).thenReturn(bucketMetadata);
+        when(bucket.getRepositoryName()).thenReturn(name);
+
+        buckets.put(name, bucket);
+        repositories.put(name, repository);
+        return repository;
+    }
+
+    private void addComponent(String repositoryName, String groupId, String artifactId, String baseVersion, String version) {
+        EntityId bucketId = buckets.get(repositoryName).getEntityMetadata().getId();
+        List<Asset> componentAssets = assets.computeIfAbsent(repositoryName, name -> new HashMap<>())
+                .computeIfAbsent(componentKey(groupId, artifactId, version), key -> new ArrayList<>());
+        for (String[] file : FILES) {
+            Gav gav = Gav.of(groupId, artifactId, version, file[0], file[1], null);
+            componentAssets.add(asset(repositoryName, bucketId, gav, baseVersion));
+        }
+    }
+
+    private void addUpstreamComponent(String repositoryName, String artifactId, String version) {
+        Set<String> paths = upstreamArtifacts.computeIfAbsent(repositoryName, name -> new HashSet<>());
+        for (String[] file : FILES) {
+            paths.add(Gav.of(REMOTE_GROUP_ID, artifactId, version, file[0], file[1], null).artifactPath(version).substring(1));
+        }
+    }
+
+    private Asset asset(String repositoryName, EntityId bucketId, Gav gav, String baseVersion) {
+        String name = gav.artifactPath(baseVersion).substring(1);
+
+        Map<String, Object> maven2 = new HashMap<>();
+        maven2.put(Attributes.P_GROUP_ID, gav.getGroupId());
+        maven2.put(Attributes.P_ARTIFACT_ID, gav.getArtifactId());
+        maven2.put(Attributes.P_VERSION, gav.getVersion());
+        maven2.put(Attributes.P_BASE_VERSION, baseVersion);
+        maven2.put(Attributes.P_EXTENSION, gav.getExtension());
+        if (gav.getClassifier() != null) {
+            maven2.put(Attributes.P_CLASSIFIER, gav.getClassifier());
+        }
+        maven2.put(Attributes.P_ASSET_KIND, AssetKind.ARTIFACT.name());
+
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("maven2", new DetachingMap<>(maven2, () -> false, HashMap::new));
+        attributes.put("checksum", Collections.singletonMap("sha1",
+                Hashing.sha1().hashString(repositoryName + "/" + name, StandardCharsets.UTF_8).toString()));
+        attributes.put("content", Collections.singletonMap("last_modified", LAST_MODIFIED));
+
+        EntityMetadata metadata = stub(EntityMetadata.class);
+        when(metadata.getId()).thenReturn(new DetachedEntityId(repositoryName + "/" + name));
+        Asset asset = stub(Asset.class);
+        when(asset.name()).thenReturn(name);
+        when(asset.attributes()).thenReturn(new NestedAttributesMap("attributes", attributes));
+        when(asset.bucketId()).thenReturn(bucketId);
+        when(asset.getEntityMetadata()).thenReturn(metadata);
+        when(asset.size()).thenReturn((long) content.length);
+        when(asset.requireBlobRef()).thenReturn(new BlobRef("localhost", "default", repositoryName + "/" + name));
+        return asset;
+    }
+
+    /**
+     * Assets of the repositories matching the query: group, name and version (or versions) of the component, and
+     * any asset attribute of the where clause.
+     */
+    private Iterable<Asset> findAssets(Query query, Iterable<Repository> queried) {
+        latencies.storage.pause();
+        Map<String, Object> criteria = new HashMap<>();
+        Matcher matcher = CRITERION.matcher(query.getWhere());
+        while (matcher.find()) {
+            criteria.put(matcher.group(1), query.getParameters().get(matcher.group(2)));
+        }
+        Object version = criteria.get("component.attributes.maven2.version");
+        Collection<?> versions = version instanceof Collection ? (Collection<?>) version : Collections.singleton(version);
+
+        List<Asset> found = new ArrayList<>();
+        for (Repository repository : queried) {
+            Map<String, List<Asset>> repositoryAssets = assets.get(repository.getName());
+            if (repositoryAssets == null) {
+                continue;
+            }
+            for (Object componentVersion : versions) {
+                String key = componentKey(criteria.get("component.group"), criteria.get("component.name"), componentVersion);
+                for (Asset asset : repositoryAssets.getOrDefault(key, Collections.emptyList())) {
+                    if (matches(asset, criteria)) {
+                        found.add(asset);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private static boolean matches(Asset asset, Map<String, Object> criteria) {
+        Map<String, Object> maven2 = (Map<String, Object>) asset.attributes().get("maven2");
+        for (Map.Entry<String, Object> criterion : criteria.entrySet()) {
+            if (criterion.getKey().startsWith(ASSET_ATTRIBUTES)
+                    && !criterion.getValue().equals(maven2.get(criterion.getKey().substring(ASSET_ATTRIBUTES.length())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Iterable<Bucket> findBuckets(Iterable<Repository> queried) {
+        latencies.storage.pause();
+        List<Bucket> found = new ArrayList<>();
+        for (Repository repository : queried) {
+            Bucket bucket = buckets.get(repository.getName());
+            if (bucket != null) {
+                found.add(bucket);
+            }
+        }
+        return found;
+    }
+
+    private Content localMetadata(String repositoryName, MavenPath mavenPath) {
+        latencies.metadata.pause();
+        Map<String, byte[]> metadata = localMetadata.get(repositoryName);
+        byte[] bytes = metadata != null ? metadata.get(mavenPath.getPath()) : null;
+        if (bytes == null) {
+            return null;
+        }
+        Content metadataContent = new Content(new BytesPayload(bytes, "application/xml"));
+        Map<HashAlgorithm, HashCode> hashes = Collections.singletonMap(HashAlgorithm.SHA1, Hashing.sha1().hashBytes(bytes));
+        metadataContent.getAttributes().set(Content.CONTENT_HASH_CODES_MAP, hashes);
+        return metadataContent;
+    }
+
+    /**
+     * The view of a proxy fetches upstream, the view of a group asks its members; storage was already looked up.
+     */
+    private org.sonatype.nexus.repository.view.Response dispatch(String repositoryName, List<Repository> members, Request request) {
+        latencies.view.pause();
+        String path = request.getPath().startsWith("/") ? request.getPath().substring(1) : request.getPath();
+        List<String> names = new ArrayList<>();
+        if (members != null) {
+            for (Repository member : members) {
+                names.add(member.getName());
+            }
+        } else {
+            names.add(repositoryName);
+        }
+        for (String name : names) {
+            if (upstreamArtifacts.getOrDefault(name, Collections.emptySet()).contains(path)) {
+                return HttpResponses.ok(new BytesPayload(content, "application/java-archive"));
+            }
+        }
+        return HttpResponses.notFound();
+    }
+
+    private static String componentKey(Object groupId, Object artifactId, Object version) {
+        return groupId + ":" + artifactId + ":" + version;
+    }
+
+    private static void putMetadata(Map<String, Map<String, byte[]>> metadata, String repositoryName, String groupId,
+                                    String artifactId, String baseVersion, Metadata content) throws IOException {
+        String path = Gav.of(groupId, artifactId, baseVersion != null ? baseVersion : "0").metadataPath(baseVersion);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MetadataXpp3Writer().write(out, content);
+        metadata.computeIfAbsent(repositoryName, name -> new HashMap<>()).put(path, out.toByteArray());
+    }
+
+    private static Metadata artifactMetadata(String groupId, String artifactId, List<String> versions, String release) {
+        Versioning versioning = new Versioning();
+        versioning.setVersions(new ArrayList<>(versions));
+        versioning.setLatest(last(versions));
+        versioning.setRelease(release);
+        versioning.setLastUpdated(LAST_UPDATED);
+
+        Metadata metadata = new Metadata();
+        metadata.setGroupId(groupId);
+        metadata.setArtifactId(artifactId);
+        metadata.setVersioning(versioning);
+        return metadata;
+    }
+
+    private static Metadata snapshotMetadata(String groupId, String artifactId) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.setTimestamp(SNAPSHOT_TIMESTAMP);
+        snapshot.setBuildNumber(SNAPSHOT_BUILD_NUMBER);
+
+        Versioning versioning = new Versioning();
+        versioning.setSnapshot(snapshot);
+        versioning.setLastUpdated(LAST_UPDATED);
+        for (String[] file : FILES) {
+            SnapshotVersion snapshotVersion = new SnapshotVersion();
+            snapshotVersion.setClassifier(file[0] != null ? file[0] : "");
+            snapshotVersion.setExtension(file[1]);
+            snapshotVersion.setVersion(timestampedVersion());
+            snapshotVersion.setUpdated(LAST_UPDATED);
+            versioning.addSnapshotVersion(snapshotVersion);
+        }
+
+        Metadata metadata = new Metadata();
+        metadata.setGroupId(groupId);
+        metadata.setArtifactId(artifactId);
+        metadata.setVersion(SNAPSHOT_VERSION);
+        metadata.setVersioning(versioning);
+        return metadata;
+    }
+
+    private static String last(List<String> versions) {
+        return versions.get(versions.size() - 1);
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+}
@@ -0,0 +1,45 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time a stand-in of the load harness takes to answer: a fixed part plus a uniform random jitter.
+ */
+final class Latency {
+
+    static final Latency NONE = new Latency(0, 0);
+
+    private final long nanos;
+    private final long jitterNanos;
+
+    Latency(double millis, double jitterMillis) {
+        this.nanos = (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+        this.jitterNanos = (long) (jitterMillis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * @param value milliseconds, optionally followed by +jitter milliseconds, e.g. "2" or "0.5+1.5"
+     */
+    static Latency parse(String value) {
+        int plus = value.indexOf('+');
+        if (plus < 0) {
+            return new Latency(Double.parseDouble(value), 0);
+        }
+        return new Latency(Double.parseDouble(value.substring(0, plus)), Double.parseDouble(value.substring(plus + 1)));
+    }
+
+    void pause() {
+        long pause = nanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+        if (pause > 0) {
+            LockSupport.parkNanos(pause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        double millis = nanos / 1e6;
+        return jitterNanos > 0 ? millis + "+" + jitterNanos / 1e6 + " ms" : millis + " ms";
+    }
+}
@@ -0,0 +1,396 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.codahale.metrics.MetricRegistry;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.CENTRAL;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.LOCAL_GROUP_ID;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.PUBLIC;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.RELEASES;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.RELEASE_VERSIONS;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.REMOTE_GROUP_ID;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.REMOTE_VERSIONS;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.SNAPSHOTS;
+import static com.ptoceti.nexus3.plugin.localservice.InMemoryRepositories.SNAPSHOT_VERSION;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Load test of the resource without a nexus: the resource is wired with its real helpers on top of
+ * {@link InMemoryRepositories} and {@link MetadataHttpStub}, and {@code threads} threads call it in a loop with a mix
+ * of LATEST, RELEASE, SNAPSHOT and fixed version resolves and content downloads (content written out, as the client
+ * reads it). After a warm-up, throughput and latency percentiles are reported per operation.
+ *
+ * Options are given as key=value arguments, see {@link #DEFAULTS}. Latencies are milliseconds, optionally followed by
+ * +jitter milliseconds. Coordinates are skewed towards the first components: about a third of the requests go to
+ * the first 4% of them. Half of the requests go through the group public, the others to the repository of the
+ * artifact; a third of the requests other than snapshots are for artifacts of the proxy.
+ */
+public class LoadDriver {
+
+    enum Operation {
+        LATEST, RELEASE, SNAPSHOT, FIXED, CONTENT
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("threads", "32");
+        DEFAULTS.put("warmupSeconds", "10");
+        DEFAULTS.put("seconds", "30");
+        DEFAULTS.put("components", "200");
+        DEFAULTS.put("contentBytes", "16384");
+        DEFAULTS.put("metadataMaxAge", "1440");
+        DEFAULTS.put("groupSingleQuery", "true");
+        // weight of each operation
+        DEFAULTS.put("mix", "latest:15,release:15,snapshot:20,fixed:30,content:20");
+        DEFAULTS.put("latency.manager", "0");
+        DEFAULTS.put("latency.storage", "1+1");
+        DEFAULTS.put("latency.metadata", "0.2");
+        DEFAULTS.put("latency.search", "5+5");
+        DEFAULTS.put("latency.view", "20+10");
+        DEFAULTS.put("latency.http", "10+5");
+    }
+
+    private final LocalServiceResource resource;
+    private final int components;
+    private final int[] mix;
+
+    LoadDriver(LocalServiceResource resource, int components, int[] mix) {
+        this.resource = resource;
+        this.components = components;
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        System.out.println("Options: " + options);
+
+        InMemoryRepositories repositories = new InMemoryRepositories(
+                Integer.parseInt(options.get("components")), Integer.parseInt(options.get("contentBytes")),
+                Integer.parseInt(options.get("metadataMaxAge")),
+                new InMemoryRepositories.Latencies(
+                        Latency.parse(options.get("latency.manager")), Latency.parse(options.get("latency.storage")),
+                        Latency.parse(options.get("latency.metadata")), Latency.parse(options.get("latency.search")),
+                        Latency.parse(options.get("latency.view")), Latency.parse(options.get("latency.http"))));
+        MetadataHttpStub httpStub = new MetadataHttpStub(repositories, Latency.parse(options.get("latency.http")), 50);
+
+        LoopbackHttpClient loopbackHttpClient = new LoopbackHttpClient(50, 2000, 60000, 5000, 30);
+        RemoteMetadataGuard remoteMetadataGuard = new RemoteMetadataGuard(8, 10000, "", 5, 30, 10000, 1440);
+        GroupMemberLookup groupMemberLookup = new GroupMemberLookup(16, 4);
+        List<StateGuardLifecycleSupport> components = Arrays.asList(loopbackHttpClient, remoteMetadataGuard, groupMemberLookup);
+        List<StateGuardLifecycleSupport> started = new ArrayList<>();
+
+        LocalServiceResource resource = new LocalServiceResource(
+                new ArtifactSearch(repositories.searchService(), 10000, 30), repositories.repositoryManager(),
+                new MetaDataHelper(loopbackHttpClient, remoteMetadataGuard, 100000, 60),
+                groupMemberLookup, new ResolvedVersionCache(10000, 1440), new LastDownloadedRecorder(60),
+                new LocalServiceMetrics(new MetricRegistry(), loopbackHttpClient),
+                // the stand-ins have no components to index: versions come from metadata
+                new VersionIndex(repositories.repositoryManager(), false, 100000), new RequestExecutor(1, 16, 120),
+                new ContentArchiver(16, 4), new HotSet(mock(ApplicationDirectories.class), () -> null, false, 1000, 10, 4),
+                Boolean.parseBoolean(options.get("groupSingleQuery")), 1000, 86400, 60, 30, true);
+
+        httpStub.start();
+        try {
+            for (StateGuardLifecycleSupport component : components) {
+                component.start();
+                started.add(component);
+            }
+            LoadDriver driver = new LoadDriver(resource, repositories.components(), mix(options.get("mix")));
+            int threads = Integer.parseInt(options.get("threads"));
+
+            System.out.println("Warming up for " + options.get("warmupSeconds") + " s");
+            driver.run(threads, Integer.parseInt(options.get("warmupSeconds")));
+            long httpRequests = httpStub.requests();
+            System.out.println("Measuring for " + options.get("seconds") + " s");
+            Stats stats = driver.run(threads, Integer.parseInt(options.get("seconds")));
+            stats.report(System.out);
+            System.out.println("Metadata http requests: " + (httpStub.requests() - httpRequests));
+        } finally {
+            for (int i = started.size() - 1; i >= 0; i--) {
+                started.get(i).stop();
+            }
+            httpStub.close();
+        }
+    }
+
+    /**
+     * Call the resource from {@code threads} threads for {@code seconds} seconds.
+     */
+    Stats run(int threads, int seconds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Stats>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    return work(System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            Stats stats = new Stats();
+            for (Future<Stats> worker : workers) {
+                stats.add(worker.get());
+            }
+            stats.elapsedNanos = System.nanoTime() - begin;
+            return stats;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Stats work(long end) {
+        Stats stats = new Stats();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+            Call call = next(random);
+            long start = System.nanoTime();
+            try {
+                int status = call.execute();
+                stats.record(call.operation, System.nanoTime() - start, status);
+            } catch (Exception e) {
+                stats.error(call.operation, System.nanoTime() - start, e);
+            }
+        }
+        return stats;
+    }
+
+    private Call next(ThreadLocalRandom random) {
+        int pick = random.nextInt(mix[mix.length - 1]);
+        Operation operation = OPERATIONS[0];
+        for (int i = 0; i < mix.length; i++) {
+            if (pick < mix[i]) {
+                operation = OPERATIONS[i];
+                break;
+            }
+        }
+        int index = (int) (components * Math.pow(random.nextDouble(), 3));
+        boolean group = random.nextBoolean();
+        boolean snapshot = operation == Operation.SNAPSHOT || (operation == Operation.CONTENT && random.nextInt(4) == 0);
+        if (snapshot) {
+            return new Call(operation, group ? PUBLIC : SNAPSHOTS, LOCAL_GROUP_ID,
+                    InMemoryRepositories.localArtifactId(index), SNAPSHOT_VERSION);
+        }
+
+        boolean remote = random.nextInt(3) == 0;
+        List<String> versions = remote ? REMOTE_VERSIONS : RELEASE_VERSIONS;
+        String version;
+        if (operation == Operation.LATEST) {
+            version = "LATEST";
+        } else if (operation == Operation.RELEASE) {
+            version = "RELEASE";
+        } else {
+            version = versions.get(random.nextInt(versions.size()));
+        }
+        String repository = group ? PUBLIC : remote ? CENTRAL : RELEASES;
+        return remote ? new Call(operation, repository, REMOTE_GROUP_ID, InMemoryRepositories.remoteArtifactId(index), version)
+                : new Call(operation, repository, LOCAL_GROUP_ID, InMemoryRepositories.localArtifactId(index), version);
+    }
+
+    private final class Call {
+        private final Operation operation;
+        private final String repository;
+        private final String groupId;
+        private final String artifactId;
+        private final String version;
+
+        Call(Operation operation, String repository, String groupId, String artifactId, String version) {
+            this.operation = operation;
+            this.repository = repository;
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+        }
+
+        int execute() throws Exception {
+            if (operation != Operation.CONTENT) {
+                return resource.resolveResponse(repository, groupId, artifactId, version, null, "jar", null, false, null).getStatus();
+            }
+            Response response = resource.contentResponse(repository, groupId, artifactId, version, null, "jar", null, null, null);
+            try {
+                if (response.getEntity() instanceof StreamingOutput) {
+                    ((StreamingOutput) response.getEntity()).write(DiscardOutputStream.INSTANCE);
+                }
+            } finally {
+                LocalServiceResource.closeEntity(response);
+            }
+            return response.getStatus();
+        }
+    }
+
+    /**
+     * Latencies and outcomes of the calls, by operation.
+     */
+    static final class Stats {
+        private final Samples[] samples = new Samples[Operation.values().length];
+        private final long[] notFound = new long[Operation.values().length];
+        private final long[] errors = new long[Operation.values().length];
+        private Throwable firstError;
+        private long elapsedNanos;
+
+        Stats() {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = new Samples();
+            }
+        }
+
+        void record(Operation operation, long nanos, int status) {
+            samples[operation.ordinal()].add(nanos);
+            if (status == 404) {
+                notFound[operation.ordinal()]++;
+            } else if (status >= 400) {
+                errors[operation.ordinal()]++;
+            }
+        }
+
+        void error(Operation operation, long nanos, Throwable error) {
+            samples[operation.ordinal()].add(nanos);
+            errors[operation.ordinal()]++;
+            if (firstError == null) {
+                firstError = error;
+            }
+        }
+
+        void add(Stats other) {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i].addAll(other.samples[i]);
+                notFound[i] += other.notFound[i];
+                errors[i] += other.errors[i];
+            }
+            if (firstError == null) {
+                firstError = other.firstError;
+            }
+        }
+
+        void report(PrintStream out) {
+            double seconds = elapsedNanos / 1e9;
+            out.printf("%-9s %10s %10s %9s %9s %9s %9s %9s %7s%n",
+                    "operation", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "notFound", "errors");
+            Samples all = new Samples();
+            long allNotFound = 0;
+            long allErrors = 0;
+            for (Operation operation : Operation.values()) {
+                Samples operationSamples = samples[operation.ordinal()];
+                all.addAll(operationSamples);
+                allNotFound += notFound[operation.ordinal()];
+                allErrors += errors[operation.ordinal()];
+                line(out, operation.name().toLowerCase(Locale.ENGLISH), operationSamples, seconds,
+                        notFound[operation.ordinal()], errors[operation.ordinal()]);
+            }
+            line(out, "all", all, seconds, allNotFound, allErrors);
+            if (firstError != null) {
+                out.println("First error:");
+                firstError.printStackTrace(out);
+            }
+        }
+
+        private static void line(PrintStream out, String name, Samples samples, double seconds, long notFound, long errors) {
+            samples.sort();
+            out.printf(Locale.ENGLISH, "%-9s %10d %10.1f %9.3f %9.3f %9.3f %9.3f %9d %7d%n",
+                    name, samples.size, samples.size / seconds, samples.percentile(0.5) / 1e6, samples.percentile(0.99) / 1e6,
+                    samples.percentile(0.999) / 1e6, samples.percentile(1) / 1e6, notFound, errors);
+        }
+    }
+
+    /**
+     * Growable array of latencies, in nanoseconds.
+     */
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + other.size, values.length * 2));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        /**
+         * Nearest rank percentile of the sorted values, 0 if none.
+         */
+        long percentile(double percentile) {
+            if (size == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile * size);
+            return values[Math.max(0, Math.min(size, rank) - 1)];
+        }
+    }
+
+    private static final class DiscardOutputStream extends OutputStream {
+        static final DiscardOutputStream INSTANCE = new DiscardOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !DEFAULTS.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", options are " + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Cumulative weights, in the order of {@link Operation}, from "name:weight,...".
+     */
+    private static int[] mix(String mix) {
+        int[] weights = new int[Operation.values().length];
+        for (String entry : mix.split(",")) {
+            String[] weight = entry.trim().split(":");
+            weights[Operation.valueOf(weight[0].trim().toUpperCase(Locale.ENGLISH)).ordinal()] = Integer.parseInt(weight[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("No operation in mix " + mix);
+        }
+        return weights;
+    }
+}
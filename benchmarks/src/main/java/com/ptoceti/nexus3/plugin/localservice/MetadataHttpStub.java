@@ -0,0 +1,79 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local http server standing in for nexus behind the loopback client: serves the upstream maven-metadata.xml of the
+ * proxy repositories of {@link InMemoryRepositories} under /repository/{name}/, after its latency. Once started, the
+ * application-port system property points the loopback client at it.
+ */
+class MetadataHttpStub implements Closeable {
+
+    private static final String PREFIX = "/repository/";
+
+    private final InMemoryRepositories repositories;
+    private final Latency latency;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+
+    MetadataHttpStub(InMemoryRepositories repositories, Latency latency, int threads) throws IOException {
+        this.repositories = repositories;
+        this.latency = latency;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("metadata-http-stub-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.createContext(PREFIX, this::handle);
+    }
+
+    void start() {
+        server.start();
+        System.setProperty("application-port", Integer.toString(server.getAddress().getPort()));
+    }
+
+    /**
+     * Requests served so far.
+     */
+    long requests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            latency.pause();
+            String path = exchange.getRequestURI().getPath().substring(PREFIX.length());
+            int slash = path.indexOf('/');
+            byte[] metadata = slash > 0 ? repositories.upstreamMetadata(path.substring(0, slash), path.substring(slash + 1)) : null;
+            if (metadata == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, metadata.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(metadata);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of maven-metadata.xml: full model read against the streaming extractor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataParseBenchmark {
+
+    @Param({Fixtures.SMALL, Fixtures.LARGE, Fixtures.LARGE_NO_LATEST, Fixtures.SNAPSHOT})
+    public String fixture;
+
+    private byte[] content;
+
+    @Setup
+    public void setup() throws Exception {
+        content = Fixtures.bytes(fixture);
+    }
+
+    @Benchmark
+    public Metadata readFull() throws Exception {
+        return new MetadataXpp3Reader().read(new ByteArrayInputStream(content), false);
+    }
+
+    @Benchmark
+    public Metadata extractLatest() throws Exception {
+        return MetadataExtractor.extract(new ByteArrayInputStream(content), MetadataExtractor.Field.LATEST);
+    }
+
+    @Benchmark
+    public Metadata extractRelease() throws Exception {
+        return MetadataExtractor.extract(new ByteArrayInputStream(content), MetadataExtractor.Field.RELEASE);
+    }
+
+    @Benchmark
+    public Metadata extractSnapshot() throws Exception {
+        return MetadataExtractor.extract(new ByteArrayInputStream(content), MetadataExtractor.Field.SNAPSHOT);
+    }
+}
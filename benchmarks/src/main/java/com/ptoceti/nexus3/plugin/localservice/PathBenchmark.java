@@ -0,0 +1,71 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path building done for every resolution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathBenchmark {
+
+    private MetaDataHelper metaDataHelper;
+    private Gav gav;
+
+    @Setup
+    public void setup() {
+        metaDataHelper = new MetaDataHelper(new LoopbackHttpClient(50, 2000, 60000, 5000, 30),
+                new RemoteMetadataGuard(8, 10000, "", 5, 30, 10000, 1440), 100000, 60);
+        gav = Gav.of("org.apache.maven.plugins", "maven-compiler-plugin", "3.8.0", null, "jar", null);
+    }
+
+    @Benchmark
+    public String calculatePath() {
+        return PathUtils.calculatePath("org.apache.maven.plugins", "maven-compiler-plugin", "3.8.0", "3.8.0", null, "jar");
+    }
+
+    @Benchmark
+    public String calculatePathClassifier() {
+        return PathUtils.calculatePath("com.ptoceti.bench", "bench-artifact", "1.3.0-SNAPSHOT", "1.3.0-20181020.103015-42", "sources", "jar");
+    }
+
+    @Benchmark
+    public Object metadataPath() {
+        return metaDataHelper.metadataPath("org.apache.maven.plugins", "maven-compiler-plugin", null);
+    }
+
+    @Benchmark
+    public Object metadataPathVersion() {
+        return metaDataHelper.metadataPath("com.ptoceti.bench", "bench-artifact", "1.3.0-SNAPSHOT");
+    }
+
+    @Benchmark
+    public Gav gav() {
+        return Gav.of("org.apache.maven.plugins", "maven-compiler-plugin", "3.8.0", null, "jar", null);
+    }
+
+    @Benchmark
+    public String gavArtifactPath() {
+        return gav.artifactPath("3.8.0");
+    }
+
+    @Benchmark
+    public Object gavMetadataPath() {
+        return metaDataHelper.metadataPath(gav, null);
+    }
+}
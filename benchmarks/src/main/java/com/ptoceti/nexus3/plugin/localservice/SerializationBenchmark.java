@@ -0,0 +1,73 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a resolve response, as xml (JAXB) and as json (Jackson).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    private ArtifactResolution resolution;
+    private JAXBContext jaxbContext;
+    private ObjectWriter jsonWriter;
+
+    @Setup
+    public void setup() throws Exception {
+        resolution = new ArtifactResolution();
+        resolution.data = new Data();
+        resolution.data.presentLocally = "true";
+        resolution.data.groupId = "com.ptoceti.bench";
+        resolution.data.artifactId = "bench-artifact";
+        resolution.data.version = "1.3.0-20181020.103015-42";
+        resolution.data.baseVersion = "1.3.0-SNAPSHOT";
+        resolution.data.classifier = "sources";
+        resolution.data.extension = "jar";
+        resolution.data.snapshot = "true";
+        resolution.data.snapshotBuildNumber = "42";
+        resolution.data.snapshotTimeStamp = "1540031415000";
+        resolution.data.repositoryPath = PathUtils.calculatePath(resolution.data.groupId, resolution.data.artifactId,
+                resolution.data.baseVersion, resolution.data.version, resolution.data.classifier, resolution.data.extension);
+        resolution.data.sha1 = "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12";
+
+        jaxbContext = JAXBContext.newInstance(ArtifactResolution.class);
+        jsonWriter = new ObjectMapper().writer();
+    }
+
+    @Benchmark
+    public byte[] jaxb() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        // marshallers are not thread safe, one per response as resteasy does
+        Marshaller marshaller = jaxbContext.createMarshaller();
+        marshaller.marshal(resolution, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] jackson() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        jsonWriter.writeValue(out, resolution);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,58 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Version resolution from already parsed metadata. The fixture without latest / release forces the scan of the
+ * versions list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VersionResolutionBenchmark {
+
+    @Param({Fixtures.SMALL, Fixtures.LARGE, Fixtures.LARGE_NO_LATEST})
+    public String fixture;
+
+    private LocalServiceResource resource;
+    private Metadata metadata;
+    private Metadata snapshotMetadata;
+
+    @Setup
+    public void setup() throws Exception {
+        resource = Fixtures.resource();
+        metadata = Fixtures.metadata(fixture);
+        snapshotMetadata = Fixtures.metadata(Fixtures.SNAPSHOT);
+    }
+
+    @Benchmark
+    public String latest() {
+        return resource.getLatestVersionFromMetaData(null, metadata);
+    }
+
+    @Benchmark
+    public String release() {
+        return resource.getReleaseVersionFromMetaData(null, metadata);
+    }
+
+    @Benchmark
+    public String snapshot() {
+        return resource.getSnapshotVersionFromMetaData(null, snapshotMetadata, "1.3.0-SNAPSHOT");
+    }
+}
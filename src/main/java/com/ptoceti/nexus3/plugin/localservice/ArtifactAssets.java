@@ -0,0 +1,21 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.jboss.resteasy.annotations.providers.jackson.Formatted;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All the assets of a resolved version (every classifier and extension), as returned by resolve with all=true.
+ */
+@XmlRootElement(name = "artifact-assets")
+@XmlAccessorType(XmlAccessType.FIELD)
+@Formatted
+public class ArtifactAssets {
+    @XmlElement(name = "data")
+    public List<Data> data = new ArrayList<>();
+}
@@ -0,0 +1,26 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * One artifact to resolve in a bulk request, same fields as the query params of the resolve api.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ArtifactCoordinate {
+    @XmlElement(name = "repository")
+    public String repository;
+    @XmlElement(name = "groupId")
+    public String groupId;
+    @XmlElement(name = "artifactId")
+    public String artifactId;
+    @XmlElement(name = "version")
+    public String version;
+    @XmlElement(name = "classifier")
+    public String classifier;
+    @XmlElement(name = "extension")
+    public String extension;
+    @XmlElement(name = "packaging")
+    public String packaging;
+}
@@ -0,0 +1,18 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.jboss.resteasy.annotations.providers.jackson.Formatted;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+@XmlRootElement(name = "artifact-coordinates")
+@XmlAccessorType(XmlAccessType.FIELD)
+@Formatted
+public class ArtifactCoordinates {
+    @XmlElement(name = "coordinate")
+    public List<ArtifactCoordinate> coordinates = new ArrayList<>();
+}
@@ -0,0 +1,18 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Result of one coordinate of a bulk request: http like status (200, 400, 404) and the resolution when found.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ArtifactResolutionItem {
+    @XmlElement(name = "status")
+    public int status;
+    @XmlElement(name = "coordinate")
+    public ArtifactCoordinate coordinate;
+    @XmlElement(name = "data")
+    public Data data;
+}
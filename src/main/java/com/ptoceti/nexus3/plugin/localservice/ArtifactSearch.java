@@ -0,0 +1,200 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.search.SearchService;
+import org.sonatype.nexus.repository.types.GroupType;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+
+/**
+ * Look up an asset in the search index: components of the repository (or of the members of a group) with the
+ * exact groupId, artifactId and version, having an asset with the extension, classifier and packaging. Only the
+ * matching asset is kept, and results (found or not) are cached for a short time.
+ */
+@Named
+@Singleton
+public class ArtifactSearch extends ComponentSupport {
+
+    private static final int MAX_HITS = 10;
+
+    private final SearchService searchService;
+
+    private final Cache<Key, Optional<IndexedAsset>> cache;
+
+    @Inject
+    public ArtifactSearch(final SearchService searchService,
+                          @Named("${nexus.localservice.search.cache.size:-10000}") final long size,
+                          @Named("${nexus.localservice.search.cache.expireSeconds:-30}") final long expireSeconds) {
+        this.searchService = checkNotNull(searchService);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the indexed asset, null if not in the index
+     */
+    public IndexedAsset find(final Repository repository, final Gav gav) {
+        Key key = new Key(repository.getName(), gav);
+        Optional<IndexedAsset> cached = cache.getIfPresent(key);
+        if (cached != null) {
+            log.debug("find : {} in repository {} from cache", gav, repository.getName());
+            return cached.orElse(null);
+        }
+        IndexedAsset asset = search(repository, gav);
+        cache.put(key, Optional.ofNullable(asset));
+        return asset;
+    }
+
+    private IndexedAsset search(final Repository repository, final Gav gav) {
+        List<String> repositoryNames = new ArrayList<>();
+        if (repository.getType().getValue().equals(GroupType.NAME)) {
+            for (Repository member : repository.facet(GroupFacet.class).leafMembers()) {
+                repositoryNames.add(member.getName());
+            }
+        } else {
+            repositoryNames.add(repository.getName());
+        }
+        if (repositoryNames.isEmpty()) {
+            return null;
+        }
+
+        BoolQueryBuilder query = boolQuery();
+        query.filter(termQuery("format", "maven2"));
+        query.filter(termsQuery("repository_name", repositoryNames));
+        query.filter(termQuery("attributes.maven2.groupId", gav.getGroupId()));
+        query.filter(termQuery("attributes.maven2.artifactId", gav.getArtifactId()));
+        query.filter(termQuery("assets.attributes.maven2.version", gav.getVersion()));
+        if (gav.getClassifier() != null) {
+            query.filter(termQuery("assets.attributes.maven2.classifier", gav.getClassifier()));
+        }
+        if (gav.getExtension() != null) {
+            query.filter(termQuery("assets.attributes.maven2.extension", gav.getExtension()));
+        }
+        if (gav.getPackaging() != null) {
+            query.filter(termQuery("assets.attributes.maven2.packaging", gav.getPackaging()));
+        }
+
+        SearchResponse result = searchService.search(query, null, 0, Math.min(repositoryNames.size(), MAX_HITS));
+        for (SearchHit hit : result.getHits().hits()) {
+            Map<String, Object> source = hit.getSource();
+            Object assets = source != null ? source.get("assets") : null;
+            if (!(assets instanceof List)) {
+                continue;
+            }
+            for (Object asset : (List<?>) assets) {
+                IndexedAsset indexedAsset = match(asset, gav);
+                if (indexedAsset != null) {
+                    return indexedAsset;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The asset if it is the one of the coordinates: same extension, and same classifier or none.
+     */
+    private static IndexedAsset match(final Object asset, final Gav gav) {
+        Map<String, Object> attributes = child(asset, "attributes");
+        Map<String, Object> maven2 = child(attributes, "maven2");
+        if (maven2 == null) {
+            return null;
+        }
+        String classifier = string(maven2, "classifier");
+        if (!Objects.equals(string(maven2, "extension"), gav.getExtension())
+                || !Objects.equals(classifier, gav.getClassifier())) {
+            return null;
+        }
+        Map<String, Object> content = child(attributes, "content");
+        Object lastModified = content != null ? content.get("last_modified") : null;
+        return new IndexedAsset(string(child(asset, null), "name"), string(child(attributes, "checksum"), "sha1"),
+                string(maven2, "baseVersion"), classifier,
+                lastModified instanceof Number ? ((Number) lastModified).longValue() : null);
+    }
+
+    /**
+     * Map value of the key, the object itself if key is null; null if not a map.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> child(final Object parent, final String key) {
+        Object child = parent;
+        if (key != null) {
+            child = parent instanceof Map ? ((Map<?, ?>) parent).get(key) : null;
+        }
+        return child instanceof Map ? (Map<String, Object>) child : null;
+    }
+
+    private static String string(final Map<String, Object> map, final String key) {
+        Object value = map != null ? map.get(key) : null;
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Fields of an indexed asset needed for a resolution.
+     */
+    public static final class IndexedAsset {
+        public final String name;
+        public final String sha1;
+        public final String baseVersion;
+        public final String classifier;
+        public final Long lastModified;
+
+        IndexedAsset(final String name, final String sha1, final String baseVersion, final String classifier,
+                     final Long lastModified) {
+            this.name = name;
+            this.sha1 = sha1;
+            this.baseVersion = baseVersion;
+            this.classifier = classifier;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class Key {
+        private final String repositoryName;
+        private final Gav gav;
+
+        Key(final String repositoryName, final Gav gav) {
+            this.repositoryName = repositoryName;
+            this.gav = gav;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return repositoryName.equals(other.repositoryName) && gav.equals(other.gav);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * repositoryName.hashCode() + gav.hashCode();
+        }
+    }
+}
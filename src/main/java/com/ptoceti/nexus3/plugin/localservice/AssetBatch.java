@@ -0,0 +1,143 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.sonatype.nexus.common.entity.EntityHelper;
+import org.sonatype.nexus.common.entity.EntityId;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.maven.internal.Attributes.AssetKind;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.Query;
+import org.sonatype.nexus.repository.storage.StorageTx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.sonatype.nexus.repository.maven.internal.Attributes.P_ASSET_KIND;
+
+/**
+ * Assets of one groupId:artifactId, for several versions, loaded with one query over one or several repositories,
+ * so that several artifacts of the same component family are looked up without going back to the database.
+ */
+class AssetBatch {
+
+    private final List<Asset> assets;
+    private final Map<EntityId, Integer> ranks;
+
+    private AssetBatch(final List<Asset> assets, final Map<EntityId, Integer> ranks) {
+        this.assets = assets;
+        this.ranks = ranks;
+    }
+
+    static AssetBatch load(final StorageTx tx, final List<Repository> repositories, final String groupId,
+                           final String artifactId, final Collection<String> versions) {
+        if (repositories.isEmpty() || versions.isEmpty()) {
+            return new AssetBatch(new ArrayList<>(), null);
+        }
+        Query q = Query.builder().where("component.group").eq(groupId)
+                .and("component.name").eq(artifactId)
+                .and("component.attributes.maven2.version IN ").param(new ArrayList<>(versions))
+                .suffix("order by last_updated desc").build();
+
+        List<Asset> assets = new ArrayList<>();
+        tx.findAssets(q, repositories).forEach(assets::add);
+        return new AssetBatch(assets, repositories.size() > 1 ? bucketRanks(tx, repositories) : null);
+    }
+
+    /**
+     * Same matching as the single asset query: no classifier, extension or packaging match anything.
+     */
+    Asset find(final Gav gav) {
+        return first(assets.iterator(), ranks, asset -> {
+            Map<String, Object> maven2 = (Map<String, Object>) asset.attributes().get("maven2");
+            return maven2 != null && gav.getVersion().equals(maven2.get("version"))
+                    && (gav.getClassifier() == null || gav.getClassifier().equals(maven2.get("classifier")))
+                    && (gav.getExtension() == null || gav.getExtension().equals(maven2.get("extension")))
+                    && (gav.getPackaging() == null || gav.getPackaging().equals(maven2.get("packaging")));
+        });
+    }
+
+    /**
+     * All the artifact assets (every classifier and extension, no checksum or signature file) of one component
+     * version, with one query: those of the repository coming first in the list that has the component, by name.
+     */
+    static List<Asset> componentAssets(final StorageTx tx, final List<Repository> repositories, final Gav gav) {
+        if (repositories.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Query q = Query.builder().where("component.group").eq(gav.getGroupId())
+                .and("component.name").eq(gav.getArtifactId())
+                .and("component.attributes.maven2.version").eq(gav.getVersion())
+                .build();
+
+        Map<EntityId, Integer> ranks = repositories.size() > 1 ? bucketRanks(tx, repositories) : null;
+        List<Asset> found = new ArrayList<>();
+        int foundRank = Integer.MAX_VALUE;
+        for (Asset asset : tx.findAssets(q, repositories)) {
+            Map<String, Object> maven2 = (Map<String, Object>) asset.attributes().get("maven2");
+            if (maven2 == null || !AssetKind.ARTIFACT.name().equals(maven2.get(P_ASSET_KIND))) {
+                continue;
+            }
+            int rank = 0;
+            if (ranks != null) {
+                Integer bucketRank = ranks.get(asset.bucketId());
+                if (bucketRank == null) {
+                    continue;
+                }
+                rank = bucketRank;
+            }
+            if (rank < foundRank) {
+                found.clear();
+                foundRank = rank;
+            }
+            if (rank == foundRank) {
+                found.add(asset);
+            }
+        }
+        found.sort(Comparator.comparing(Asset::name));
+        return found;
+    }
+
+    /**
+     * Position of each repository in the list, by bucket id of the repository.
+     */
+    static Map<EntityId, Integer> bucketRanks(final StorageTx tx, final List<Repository> repositories) {
+        Map<String, Integer> rankByName = new HashMap<>();
+        for (int i = 0; i < repositories.size(); i++) {
+            rankByName.putIfAbsent(repositories.get(i).getName(), i);
+        }
+        Map<EntityId, Integer> rankByBucket = new HashMap<>();
+        for (Bucket bucket : tx.findBuckets(repositories)) {
+            rankByBucket.put(EntityHelper.id(bucket), rankByName.get(bucket.getRepositoryName()));
+        }
+        return rankByBucket;
+    }
+
+    /**
+     * First matching asset of the repository coming first, or just the first matching one when ranks is null.
+     */
+    static Asset first(final Iterator<Asset> assets, final Map<EntityId, Integer> ranks, final Predicate<Asset> filter) {
+        Asset found = null;
+        int foundRank = Integer.MAX_VALUE;
+        while (assets.hasNext() && foundRank > 0) {
+            Asset asset = assets.next();
+            if (!filter.test(asset)) {
+                continue;
+            }
+            if (ranks == null) {
+                return asset;
+            }
+            Integer rank = ranks.get(asset.bucketId());
+            if (rank != null && rank < foundRank) {
+                found = asset;
+                foundRank = rank;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,411 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Stream the content of several artifacts as one zip or tar archive. Entries are looked up on a shared bounded
+ * pool, at most {@code concurrency} ahead of the entry being written, and written in order as they are ready:
+ * nothing is staged, on disk or in memory. Entries not found are listed in a last entry, missing.txt, as are tar
+ * entries of unknown size (a tar header needs it, zip does not) and entries whose name or size ustar cannot hold:
+ * they are checked before their header is written, an archive cannot be fixed once streaming.
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class ContentArchiver extends StateGuardLifecycleSupport {
+
+    public enum Format {
+        ZIP("application/zip", "zip"),
+        TAR("application/x-tar", "tar");
+
+        private final String mediaType;
+        private final String extension;
+
+        Format(String mediaType, String extension) {
+            this.mediaType = mediaType;
+            this.extension = extension;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * Content of one entry: a 200 response with a {@link StreamingOutput} entity, and a Content-Length for a tar.
+     */
+    public static final class Entry {
+        private final String name;
+        private final Response response;
+
+        public Entry(String name, Response response) {
+            this.name = name;
+            this.response = response;
+        }
+    }
+
+    static final String MISSING_ENTRY = "missing.txt";
+
+    private static final int TAR_BLOCK = 512;
+
+    private static final int TAR_NAME_LENGTH = 100;
+    private static final int TAR_PREFIX_LENGTH = 155;
+
+    /**
+     * Largest size in the 11 octal digits of the size field.
+     */
+    private static final long TAR_MAX_SIZE = 077777777777L;
+
+    private final int threads;
+    private final int concurrency;
+
+    private ExecutorService executor;
+
+    @Inject
+    public ContentArchiver(@Named("${nexus.localservice.archive.threads:-16}") final int threads,
+                           @Named("${nexus.localservice.archive.concurrency:-4}") final int concurrency) {
+        this.threads = threads;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                new ThreadFactoryBuilder().setNameFormat("localservice-archive-%d").setDaemon(true).build(),
+                // pool saturated or stopping: the writer thread does the lookup itself
+                (task, pool) -> task.run());
+        log.info("ContentArchiver : started with {} threads, {} entries looked up ahead per archive", threads, concurrency);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        executor = null;
+    }
+
+    /**
+     * @param format  archive format
+     * @param labels description of each entry, in archive order, listed in missing.txt when not found
+     * @param lookup looks up the content of the entry at an index, null when not found
+     * @return the archive, looked up and written when the response is written
+     */
+    public StreamingOutput archive(final Format format, final List<String> labels, final IntFunction<Entry> lookup) {
+        return new ArchiveOutput(format, labels, lookup, ThreadContext.getSubject());
+    }
+
+    private final class ArchiveOutput implements StreamingOutput, Closeable {
+
+        private final Format format;
+        private final List<String> labels;
+        private final IntFunction<Entry> lookup;
+        private final Subject subject;
+
+        private final List<CompletableFuture<Entry>> entries;
+
+        ArchiveOutput(Format format, List<String> labels, IntFunction<Entry> lookup, Subject subject) {
+            this.format = format;
+            this.labels = labels;
+            this.lookup = lookup;
+            this.subject = subject;
+            this.entries = new ArrayList<>(labels.size());
+        }
+
+        @Override
+        public void write(final OutputStream out) throws IOException {
+            List<String> missing = new ArrayList<>();
+            Set<String> written = new HashSet<>();
+            ZipOutputStream zip = null;
+            if (format == Format.ZIP) {
+                zip = new ZipOutputStream(out);
+                // artifacts are mostly compressed already
+                zip.setLevel(Deflater.BEST_SPEED);
+            }
+            try {
+                while (entries.size() < labels.size() && entries.size() < concurrency) {
+                    submit(entries.size());
+                }
+                for (int i = 0; i < labels.size(); i++) {
+                    Entry entry = await(entries.get(i));
+                    entries.set(i, null);
+                    if (entries.size() < labels.size()) {
+                        submit(entries.size());
+                    }
+                    if (entry == null || !(entry.response.getEntity() instanceof StreamingOutput)) {
+                        if (entry != null) {
+                            LocalServiceResource.closeEntity(entry.response);
+                        }
+                        missing.add(labels.get(i));
+                        continue;
+                    }
+                    if (zip == null && contentLength(entry.response) < 0) {
+                        // e.g. proxy content not cached yet: found, but a tar header needs its size first
+                        LocalServiceResource.closeEntity(entry.response);
+                        missing.add(labels.get(i) + " (size unknown, not supported by tar, ask for zip: " + entry.name + ")");
+                        continue;
+                    }
+                    if (zip == null && !fitsTar(entry.name, contentLength(entry.response))) {
+                        LocalServiceResource.closeEntity(entry.response);
+                        missing.add(labels.get(i) + " (not supported by tar: " + entry.name + ")");
+                        continue;
+                    }
+                    if (!written.add(entry.name)) {
+                        // same artifact asked twice
+                        LocalServiceResource.closeEntity(entry.response);
+                        continue;
+                    }
+                    StreamingOutput content = (StreamingOutput) entry.response.getEntity();
+                    if (zip != null) {
+                        zip.putNextEntry(new ZipEntry(entry.name));
+                        content.write(new UnclosableOutputStream(zip));
+                        zip.closeEntry();
+                    } else {
+                        writeTarEntry(out, entry.name, contentLength(entry.response), content);
+                    }
+                }
+
+                if (!missing.isEmpty()) {
+                    byte[] listing = (String.join("\n", missing) + "\n").getBytes(StandardCharsets.UTF_8);
+                    if (zip != null) {
+                        zip.putNextEntry(new ZipEntry(MISSING_ENTRY));
+                        zip.write(listing);
+                        zip.closeEntry();
+                    } else {
+                        writeTarEntry(out, MISSING_ENTRY, listing.length, o -> o.write(listing));
+                    }
+                }
+                if (zip != null) {
+                    zip.finish();
+                } else {
+                    // end of archive: two empty blocks
+                    out.write(new byte[2 * TAR_BLOCK]);
+                }
+                out.flush();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Release entries looked up but not written, when the client went away or the archive failed.
+         */
+        @Override
+        public void close() {
+            for (int i = 0; i < entries.size(); i++) {
+                CompletableFuture<Entry> entry = entries.get(i);
+                if (entry != null) {
+                    entries.set(i, null);
+                    entry.thenAccept(found -> {
+                        if (found != null) {
+                            LocalServiceResource.closeEntity(found.response);
+                        }
+                    });
+                }
+            }
+        }
+
+        private void submit(final int index) {
+            CompletableFuture<Entry> entry = new CompletableFuture<>();
+            entries.add(entry);
+            Runnable task = () -> {
+                try {
+                    entry.complete(lookup.apply(index));
+                } catch (RuntimeException e) {
+                    log.debug("submit : lookup of {} failed: {}", labels.get(index), e.toString());
+                    entry.complete(null);
+                }
+            };
+            // look up as the user of the request
+            task = subject != null ? subject.associateWith(task) : task;
+            ExecutorService current = executor;
+            if (current != null) {
+                current.execute(task);
+            } else {
+                task.run();
+            }
+        }
+
+        private Entry await(final CompletableFuture<Entry> entry) throws IOException {
+            try {
+                return entry.join();
+            } catch (CompletionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static long contentLength(final Response response) {
+        String length = response.getHeaderString(HttpHeaders.CONTENT_LENGTH);
+        try {
+            return length != null ? Long.parseLong(length) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * ustar header, content, then padding to the next block.
+     */
+    private static void writeTarEntry(final OutputStream out, final String name, final long size, final StreamingOutput content) throws IOException {
+        out.write(tarHeader(name, size));
+        CountingOutputStream counting = new CountingOutputStream(out);
+        content.write(counting);
+        if (counting.count != size) {
+            // the header is out, the archive cannot be fixed anymore
+            throw new IOException("entry " + name + " is " + counting.count + " bytes, " + size + " expected");
+        }
+        int padding = (int) (size % TAR_BLOCK);
+        if (padding != 0) {
+            out.write(new byte[TAR_BLOCK - padding]);
+        }
+    }
+
+    /**
+     * Whether a ustar header can hold the name and size: names over 100 bytes need a '/' splitting them into a prefix
+     * of at most 155 bytes and a name of at most 100 bytes.
+     */
+    static boolean fitsTar(final String name, final long size) {
+        return size <= TAR_MAX_SIZE && tarNameSplit(name.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /**
+     * @return 0 when the name needs no prefix, index of the '/' between prefix and name, -1 when it cannot be split
+     */
+    private static int tarNameSplit(final byte[] path) {
+        if (path.length <= TAR_NAME_LENGTH) {
+            return 0;
+        }
+        for (int i = Math.min(TAR_PREFIX_LENGTH, path.length - 1); i > 0; i--) {
+            if (path[i] == '/') {
+                return path.length - i - 1 <= TAR_NAME_LENGTH ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    static byte[] tarHeader(final String name, final long size) {
+        byte[] header = new byte[TAR_BLOCK];
+        byte[] path = name.getBytes(StandardCharsets.UTF_8);
+        int split = tarNameSplit(path);
+        if (split < 0) {
+            throw new IllegalArgumentException("Entry name too long for tar: " + name);
+        } else if (split > 0) {
+            // longer names go to the prefix field
+            System.arraycopy(path, 0, header, 345, split);
+            System.arraycopy(path, split + 1, header, 0, path.length - split - 1);
+        } else {
+            System.arraycopy(path, 0, header, 0, path.length);
+        }
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, System.currentTimeMillis() / 1000);
+        header[156] = '0';
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // checksum computed with its own field as spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Zero padded octal value, NUL terminated, in the field.
+     */
+    private static void octal(final byte[] header, final int offset, final int length, final long value) {
+        String digits = Long.toOctalString(value);
+        if (digits.length() > length - 1) {
+            throw new IllegalArgumentException("Value too large for tar: " + value);
+        }
+        int start = offset + length - 1 - digits.length();
+        for (int i = offset; i < start; i++) {
+            header[i] = '0';
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            header[start + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // the archive stays open for the next entries
+        }
+    }
+
+    private static final class CountingOutputStream extends UnclosableOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.http.client.utils.DateUtils;
+import org.sonatype.nexus.repository.storage.Asset;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Validators (ETag, Last-Modified) and byte ranges for content responses.
+ */
+public class ContentResponseHelper {
+
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String RANGE = "Range";
+    public static final String IF_RANGE = "If-Range";
+
+    private static final String BYTES_UNIT = "bytes";
+
+    private ContentResponseHelper() {
+    }
+
+    /**
+     * Strong etag from the sha1 of the asset, null if not known.
+     */
+    public static EntityTag etag(Asset asset) {
+        Map<String, Object> checksum = (Map<String, Object>) asset.attributes().get("checksum");
+        String sha1 = checksum != null ? (String) checksum.get("sha1") : null;
+        return sha1 != null ? new EntityTag(sha1) : null;
+    }
+
+    public static Date lastModified(Asset asset) {
+        Map<String, Object> content = (Map<String, Object>) asset.attributes().get("content");
+        return content != null ? (Date) content.get("last_modified") : null;
+    }
+
+    /**
+     * Evaluate If-None-Match / If-Modified-Since (and If-Match / If-Unmodified-Since).
+     *
+     * @return builder of the 304 (or 412) response to send instead of the content, null to send the content
+     */
+    public static Response.ResponseBuilder evaluatePreconditions(Request request, Date lastModified, EntityTag etag) {
+        if (request == null) {
+            return null;
+        }
+        Response.ResponseBuilder builder;
+        if (lastModified != null && etag != null) {
+            builder = request.evaluatePreconditions(lastModified, etag);
+        } else if (etag != null) {
+            builder = request.evaluatePreconditions(etag);
+        } else if (lastModified != null) {
+            builder = request.evaluatePreconditions(lastModified);
+        } else {
+            return null;
+        }
+        if (builder != null) {
+            validators(builder, lastModified, etag);
+        }
+        return builder;
+    }
+
+    /**
+     * Response for the content, whole (200) or the requested range (206, 416 if the range is out of the content).
+     * The stream is closed when not used.
+     */
+    public static Response.ResponseBuilder content(InputStream in, Long size, HttpHeaders headers, Date lastModified, EntityTag etag) throws IOException {
+        long[] range = size != null ? requestedRange(headers, size, lastModified, etag) : null;
+
+        Response.ResponseBuilder builder;
+        if (range == null) {
+            builder = Response.ok(new ContentStreamingOutput(in));
+            if (size != null) {
+                builder.header(HttpHeaders.CONTENT_LENGTH, size);
+            }
+        } else if (range.length == 0) {
+            in.close();
+            builder = Response.status(416).header(CONTENT_RANGE, BYTES_UNIT + " */" + size);
+        } else {
+            long length = range[1] - range[0] + 1;
+            builder = Response.status(206).entity(new ContentStreamingOutput(in, range[0], length))
+                    .header(CONTENT_RANGE, BYTES_UNIT + " " + range[0] + "-" + range[1] + "/" + size)
+                    .header(HttpHeaders.CONTENT_LENGTH, length);
+        }
+        if (size != null) {
+            builder.header(ACCEPT_RANGES, BYTES_UNIT);
+        }
+        validators(builder, lastModified, etag);
+        return builder;
+    }
+
+    private static void validators(Response.ResponseBuilder builder, Date lastModified, EntityTag etag) {
+        if (etag != null) {
+            builder.tag(etag);
+        }
+        if (lastModified != null) {
+            builder.lastModified(lastModified);
+        }
+    }
+
+    /**
+     * Single byte range asked by the request: null for the whole content (no range, unsupported or not matching
+     * If-Range), empty if not satisfiable, else first and last byte positions.
+     */
+    static long[] requestedRange(HttpHeaders headers, long size, Date lastModified, EntityTag etag) {
+        String range = headers != null ? headers.getHeaderString(RANGE) : null;
+        if (range == null || !range.startsWith(BYTES_UNIT + "=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        if (!ifRangeMatches(headers.getHeaderString(IF_RANGE), lastModified, etag)) {
+            return null;
+        }
+
+        String spec = range.substring(BYTES_UNIT.length() + 1).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                // suffix range: last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                if (first >= size) {
+                    return new long[0];
+                }
+                String lastSpec = spec.substring(dash + 1);
+                last = lastSpec.isEmpty() ? size - 1 : Math.min(Long.parseLong(lastSpec), size - 1);
+                if (last < first) {
+                    return null;
+                }
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static boolean ifRangeMatches(String ifRange, Date lastModified, EntityTag etag) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && ifRange.equals("\"" + etag.getValue() + "\"");
+        }
+        // http date: only exact second match
+        Date date = DateUtils.parseDate(ifRange);
+        return date != null && lastModified != null && date.getTime() / 1000 == lastModified.getTime() / 1000;
+    }
+}
@@ -0,0 +1,97 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Write content to the response with a buffered copy through large pooled buffers, instead of the small per-request
+ * buffers of the default InputStream writer. This is not zero-copy: blob store streams are not file streams, and the
+ * servlet output is no channel to transfer to. Only the part from offset, of the given length, is written. The stream
+ * is closed once written.
+ */
+public class ContentStreamingOutput implements StreamingOutput, Closeable {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    private final InputStream in;
+    private final long offset;
+    private final long length;
+
+    /**
+     * @param in     content
+     * @param offset first byte to write
+     * @param length number of bytes to write, -1 for everything after offset
+     */
+    public ContentStreamingOutput(InputStream in, long offset, long length) {
+        this.in = in;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public ContentStreamingOutput(InputStream in) {
+        this(in, 0, -1);
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        try {
+            copy(out);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void copy(OutputStream out) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            long toSkip = offset;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    // skip may not move on some streams, read instead
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, toSkip));
+                    if (read < 0) {
+                        throw new EOFException("content shorter than " + offset);
+                    }
+                    skipped = read;
+                }
+                toSkip -= skipped;
+            }
+
+            long remaining = length < 0 ? Long.MAX_VALUE : length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static byte[] acquire() {
+        byte[] buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void release(byte[] buffer) {
+        BUFFERS.offer(buffer);
+    }
+}
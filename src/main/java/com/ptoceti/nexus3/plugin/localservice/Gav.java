@@ -0,0 +1,197 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import java.util.Objects;
+
+import static org.sonatype.nexus.common.text.Strings2.isBlank;
+import static org.sonatype.nexus.repository.maven.internal.Constants.SNAPSHOT_VERSION_SUFFIX;
+
+/**
+ * Coordinates of one maven artifact: groupId, artifactId, version, and optional classifier, extension and packaging
+ * (blank ones are kept as null). Validated on creation, so that they are safe to build repository paths with.
+ */
+public final class Gav {
+
+    private final String groupId;
+    private final String artifactId;
+    private final String version;
+    private final String classifier;
+    private final String extension;
+    private final String packaging;
+
+    private final String groupPath;
+    private final int hash;
+
+    private Gav(String groupId, String artifactId, String version, String classifier, String extension, String packaging) {
+        this.groupId = groupId;
+        this.artifactId = artifactId;
+        this.version = version;
+        this.classifier = classifier;
+        this.extension = extension;
+        this.packaging = packaging;
+        this.groupPath = PathUtils.groupPath(groupId);
+        this.hash = Objects.hash(groupId, artifactId, version, classifier, extension, packaging);
+    }
+
+    /**
+     * @throws IllegalArgumentException if groupId, artifactId or version is blank, or a field is not a valid path segment
+     */
+    public static Gav of(String groupId, String artifactId, String version, String classifier, String extension, String packaging) {
+        checkGroupId(groupId);
+        checkSegment("artifactId", artifactId);
+        checkSegment("version", version);
+        return new Gav(groupId, artifactId, version, optional("classifier", classifier), optional("extension", extension),
+                optional("packaging", packaging));
+    }
+
+    public static Gav of(String groupId, String artifactId, String version) {
+        return of(groupId, artifactId, version, null, null, null);
+    }
+
+    /**
+     * Same coordinates for another version, e.g. the one LATEST or a base snapshot version resolves to.
+     */
+    public Gav withVersion(String version) {
+        if (this.version.equals(version)) {
+            return this;
+        }
+        checkSegment("version", version);
+        return new Gav(groupId, artifactId, version, classifier, extension, packaging);
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getArtifactId() {
+        return artifactId;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getClassifier() {
+        return classifier;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getPackaging() {
+        return packaging;
+    }
+
+    /**
+     * groupId with '.' replaced by '/', shared by all coordinates of the same groupId.
+     */
+    public String getGroupPath() {
+        return groupPath;
+    }
+
+    public boolean isSnapshot() {
+        return version.endsWith(SNAPSHOT_VERSION_SUFFIX);
+    }
+
+    /**
+     * Path of the artifact in the repository, with a leading '/'.
+     *
+     * @param baseVersion version directory, the base version for a timestamped snapshot
+     */
+    public String artifactPath(String baseVersion) {
+        StringBuilder path = new StringBuilder(groupPath.length() + 2 * artifactId.length() + baseVersion.length()
+                + version.length() + 32);
+        path.append('/').append(groupPath)
+                .append('/').append(artifactId)
+                .append('/').append(baseVersion)
+                .append('/').append(artifactId).append('-').append(version);
+        if (classifier != null) {
+            path.append('-').append(classifier);
+        }
+        if (extension != null) {
+            path.append('.').append(extension);
+        }
+        return path.toString();
+    }
+
+    /**
+     * Path of the maven-metadata.xml of the artifact (baseVersion null) or of one of its versions, without leading '/'.
+     */
+    public String metadataPath(String baseVersion) {
+        StringBuilder path = new StringBuilder(groupPath.length() + artifactId.length() + 64);
+        path.append(groupPath).append('/').append(artifactId);
+        if (!isBlank(baseVersion)) {
+            path.append('/').append(baseVersion);
+        }
+        return path.append('/').append(MetaDataHelper.METADATA_FILENAME).toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Gav)) {
+            return false;
+        }
+        Gav other = (Gav) o;
+        return hash == other.hash
+                && groupId.equals(other.groupId)
+                && artifactId.equals(other.artifactId)
+                && version.equals(other.version)
+                && Objects.equals(classifier, other.classifier)
+                && Objects.equals(extension, other.extension)
+                && Objects.equals(packaging, other.packaging);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(groupId).append(':').append(artifactId).append(':').append(version);
+        if (classifier != null) {
+            sb.append(':').append(classifier);
+        }
+        if (extension != null) {
+            sb.append(':').append(extension);
+        }
+        return sb.toString();
+    }
+
+    private static void checkGroupId(String groupId) {
+        checkSegment("groupId", groupId);
+        if (groupId.startsWith(".") || groupId.endsWith(".") || groupId.contains("..")) {
+            throw new IllegalArgumentException("Invalid groupId: " + groupId);
+        }
+    }
+
+    private static void checkSegment(String name, String value) {
+        if (isBlank(value)) {
+            throw new IllegalArgumentException(name + " cannot be blank");
+        }
+        checkChars(name, value);
+    }
+
+    private static String optional(String name, String value) {
+        if (isBlank(value)) {
+            return null;
+        }
+        checkChars(name, value);
+        return value;
+    }
+
+    private static void checkChars(String name, String value) {
+        if (value.equals("..") || value.equals(".")) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '/' || c == '\\' || c == ':' || Character.isISOControl(c)) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.repository.Repository;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Look up group members concurrently while keeping group order: the result of the first member (in group order)
+ * that answers wins. At most {@code concurrency} members of one request are looked up at the same time, on a
+ * shared bounded pool. Once a winner is known, lookups not started yet are cancelled and results of lookups still
+ * running are handed to the discard callback (eg. to close a content stream).
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class GroupMemberLookup extends StateGuardLifecycleSupport {
+
+    private final int threads;
+    private final int concurrency;
+
+    private ExecutorService executor;
+
+    @Inject
+    public GroupMemberLookup(@Named("${nexus.localservice.group.threads:-16}") final int threads,
+                             @Named("${nexus.localservice.group.concurrency:-4}") final int concurrency) {
+        this.threads = threads;
+        this.concurrency = concurrency;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                new ThreadFactoryBuilder().setNameFormat("localservice-group-lookup-%d").setDaemon(true).build(),
+                // pool saturated or stopping: the request thread does the lookup itself
+                (task, pool) -> task.run());
+        log.info("GroupMemberLookup : started with {} threads, {} concurrent lookups per request", threads, concurrency);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        executor = null;
+    }
+
+    /**
+     * @param members group members, in group order
+     * @param lookup  lookup in one member, returns null on miss
+     * @param discard called with results that are computed but not used, may be null
+     * @return result of the first member in group order with a non null result, null if none
+     */
+    public <T> T findFirst(final List<Repository> members, final Function<Repository, T> lookup, final Consumer<T> discard) {
+        ExecutorService current = executor;
+        if (current == null || concurrency <= 1 || members.size() <= 1) {
+            for (Repository member : members) {
+                T result = lookup.apply(member);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        }
+
+        List<MemberTask<T>> tasks = new ArrayList<>(members.size());
+        List<Future<T>> futures = new ArrayList<>(members.size());
+        for (Repository member : members) {
+            tasks.add(new MemberTask<>(member, lookup, discard));
+        }
+
+        try {
+            int submitted = 0;
+            while (submitted < tasks.size() && submitted < concurrency) {
+                futures.add(current.submit(tasks.get(submitted++)));
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                T result = null;
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.warn("findFirst : lookup in member {} failed: {}", members.get(i).getName(), e.getCause().toString());
+                }
+                if (result != null) {
+                    log.debug("findFirst : found in member {} ({} of {})", members.get(i).getName(), i + 1, members.size());
+                    abandon(tasks, futures, i + 1);
+                    return result;
+                }
+                if (submitted < tasks.size()) {
+                    futures.add(current.submit(tasks.get(submitted++)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(tasks, futures, 0);
+        }
+        return null;
+    }
+
+    private <T> void abandon(final List<MemberTask<T>> tasks, final List<Future<T>> futures, final int from) {
+        for (int i = from; i < futures.size(); i++) {
+            tasks.get(i).abandon();
+            // no interrupt: storage transactions do not like being interrupted, a running lookup just completes
+            futures.get(i).cancel(false);
+        }
+    }
+
+    private static final class MemberTask<T> implements Callable<T> {
+        private final Repository member;
+        private final Function<Repository, T> lookup;
+        private final Consumer<T> discard;
+
+        private boolean abandoned;
+        private boolean done;
+        private T result;
+
+        MemberTask(final Repository member, final Function<Repository, T> lookup, final Consumer<T> discard) {
+            this.member = member;
+            this.lookup = lookup;
+            this.discard = discard;
+        }
+
+        @Override
+        public T call() {
+            synchronized (this) {
+                if (abandoned) {
+                    return null;
+                }
+            }
+            T value = lookup.apply(member);
+            synchronized (this) {
+                if (abandoned) {
+                    discard(value);
+                    return null;
+                }
+                done = true;
+                result = value;
+            }
+            return value;
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            if (done) {
+                discard(result);
+                result = null;
+            }
+        }
+
+        private void discard(final T value) {
+            if (value != null && discard != null) {
+                discard.accept(value);
+            }
+        }
+    }
+}
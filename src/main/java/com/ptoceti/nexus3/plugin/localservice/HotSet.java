@@ -0,0 +1,360 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.TASKS;
+
+/**
+ * Most requested coordinates, kept across restarts to warm caches up at startup.
+ *
+ * Requests are counted in a count-min sketch (fixed size, counts halved at each flush so that the hot set follows
+ * recent traffic). At most twice {@code size} coordinates are kept as candidates: a coordinate gets in only when its
+ * estimated count beats the lowest candidate, which it then replaces. At each flush the {@code size} candidates with
+ * the highest counts are written to the work directory. At start, the last hot set is resolved again in the
+ * background, {@code warmupConcurrency} at a time: metadata, resolved versions and database caches are filled before
+ * the traffic comes; the warm-up threads stop once done.
+ */
+@Named
+@Singleton
+// after the repositories are started
+@ManagedLifecycle(phase = TASKS)
+public class HotSet extends StateGuardLifecycleSupport {
+
+    private static final String HOTSET_FILE = "hotset.txt";
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1 << 14;
+    private static final int[] SKETCH_SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    /**
+     * Coordinates asked once are not candidates.
+     */
+    private static final int MIN_THRESHOLD = 2;
+
+    private final ApplicationDirectories applicationDirectories;
+    private final Provider<LocalServiceResource> resource;
+    private final boolean enabled;
+    private final int size;
+    private final long flushMinutes;
+    private final int warmupConcurrency;
+
+    private final AtomicIntegerArray sketch = new AtomicIntegerArray(SKETCH_DEPTH * SKETCH_WIDTH);
+
+    /**
+     * Candidates to their last estimated count; added and removed under the lock of {@link #lowest} only.
+     */
+    private final ConcurrentMap<HotKey, Integer> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * Candidates by count, lowest first; an entry may hold a count older than the one in {@link #candidates}.
+     */
+    private final PriorityQueue<Candidate> lowest = new PriorityQueue<>(Comparator.comparingInt((Candidate c) -> c.estimate));
+
+    /**
+     * Estimated count a coordinate needs to be considered as a candidate.
+     */
+    private volatile int threshold = MIN_THRESHOLD;
+
+    private ScheduledExecutorService flusher;
+    private ExecutorService warmer;
+
+    @Inject
+    public HotSet(final ApplicationDirectories applicationDirectories,
+                  final Provider<LocalServiceResource> resource,
+                  @Named("${nexus.localservice.hotset.enabled:-true}") final boolean enabled,
+                  @Named("${nexus.localservice.hotset.size:-1000}") final int size,
+                  @Named("${nexus.localservice.hotset.flushMinutes:-10}") final long flushMinutes,
+                  @Named("${nexus.localservice.hotset.warmupConcurrency:-4}") final int warmupConcurrency) {
+        this.applicationDirectories = checkNotNull(applicationDirectories);
+        this.resource = checkNotNull(resource);
+        this.enabled = enabled;
+        this.size = Math.max(1, size);
+        this.flushMinutes = flushMinutes;
+        this.warmupConcurrency = Math.max(1, warmupConcurrency);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (!enabled) {
+            log.info("HotSet : disabled");
+            return;
+        }
+        List<HotKey> hotSet = load();
+        synchronized (lowest) {
+            for (HotKey key : hotSet) {
+                candidates.put(key, 0);
+                lowest.add(new Candidate(key, 0));
+            }
+        }
+        if (!hotSet.isEmpty()) {
+            warmer = Executors.newFixedThreadPool(warmupConcurrency,
+                    new ThreadFactoryBuilder().setNameFormat("localservice-warmup-%d").setDaemon(true).build());
+            warmUp(hotSet);
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("localservice-hotset-flush-%d").setDaemon(true).build());
+        flusher.scheduleWithFixedDelay(this::flush, flushMinutes, flushMinutes, TimeUnit.MINUTES);
+        log.info("HotSet : started, {} coordinates to warm up, {} kept every {} min", hotSet.size(), size, flushMinutes);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (warmer != null) {
+            warmer.shutdownNow();
+            warmer = null;
+        }
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+            flusher = null;
+            flush();
+        }
+    }
+
+    /**
+     * Count a request for the coordinates.
+     */
+    public void record(final String repositoryName, final Gav gav) {
+        if (!enabled) {
+            return;
+        }
+        HotKey key = new HotKey(repositoryName, gav);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            estimate = Math.min(estimate, sketch.incrementAndGet(index(row, key.hash)));
+        }
+        if (estimate < threshold || candidates.replace(key, estimate) != null) {
+            return;
+        }
+        synchronized (lowest) {
+            if (candidates.replace(key, estimate) != null) {
+                return;
+            }
+            while (candidates.size() >= 2 * size) {
+                Candidate min = lowest.peek();
+                int current = candidates.get(min.key);
+                if (current != min.estimate) {
+                    // counted since it was queued
+                    lowest.poll();
+                    lowest.add(new Candidate(min.key, current));
+                    continue;
+                }
+                if (estimate <= current) {
+                    return;
+                }
+                lowest.poll();
+                candidates.remove(min.key);
+            }
+            candidates.put(key, estimate);
+            lowest.add(new Candidate(key, estimate));
+        }
+    }
+
+    private void warmUp(final List<HotKey> hotSet) {
+        ExecutorService pool = warmer;
+        long start = System.currentTimeMillis();
+        AtomicInteger remaining = new AtomicInteger(hotSet.size());
+        AtomicInteger found = new AtomicInteger();
+        for (HotKey key : hotSet) {
+            pool.execute(() -> {
+                try {
+                    if (resource.get().warmUp(key.repositoryName, key.gav)) {
+                        found.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    log.debug("warmUp : could not resolve {} in {}: {}", key.gav, key.repositoryName, e.toString());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    log.info("warmUp : {} of {} coordinates resolved in {} ms", found.get(), hotSet.size(),
+                            System.currentTimeMillis() - start);
+                    // only needed at start
+                    pool.shutdown();
+                }
+            });
+        }
+    }
+
+    /**
+     * Keep the candidates with the highest counts, write them, then halve all counts.
+     */
+    synchronized void flush() {
+        List<HotKey> ranked = new ArrayList<>();
+        synchronized (lowest) {
+            List<Candidate> all = new ArrayList<>(candidates.size());
+            for (HotKey key : candidates.keySet()) {
+                all.add(new Candidate(key, estimate(key)));
+            }
+            all.sort(Comparator.comparingInt((Candidate c) -> c.estimate).reversed());
+            if (all.size() > size) {
+                for (Candidate candidate : all.subList(size, all.size())) {
+                    candidates.remove(candidate.key);
+                }
+                all = all.subList(0, size);
+                threshold = Math.max(MIN_THRESHOLD, all.get(all.size() - 1).estimate / 2);
+            }
+            for (Candidate candidate : all) {
+                ranked.add(candidate.key);
+            }
+        }
+
+        try {
+            // nothing asked since start: keep the last hot set
+            if (!ranked.isEmpty()) {
+                save(ranked);
+            }
+        } catch (IOException e) {
+            log.warn("flush : could not write hot set: {}", e.toString());
+        }
+
+        for (int i = 0; i < sketch.length(); i++) {
+            int count = sketch.get(i);
+            if (count > 0) {
+                sketch.addAndGet(i, -(count / 2 + count % 2));
+            }
+        }
+
+        // counts of the candidates as halved
+        synchronized (lowest) {
+            lowest.clear();
+            for (HotKey key : candidates.keySet()) {
+                int estimate = estimate(key);
+                candidates.put(key, estimate);
+                lowest.add(new Candidate(key, estimate));
+            }
+        }
+    }
+
+    private int estimate(final HotKey key) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            estimate = Math.min(estimate, sketch.get(index(row, key.hash)));
+        }
+        return estimate;
+    }
+
+    private static int index(final int row, final int hash) {
+        int h = hash * SKETCH_SEEDS[row];
+        return row * SKETCH_WIDTH + ((h ^ (h >>> 16)) & (SKETCH_WIDTH - 1));
+    }
+
+    private Path file() throws IOException {
+        return applicationDirectories.getWorkDirectory("localservice").toPath().resolve(HOTSET_FILE);
+    }
+
+    /**
+     * One line per coordinates: repository, groupId, artifactId, version, classifier, extension, packaging, tab
+     * separated, empty when null.
+     */
+    private void save(final List<HotKey> hotSet) throws IOException {
+        Path file = file();
+        Path tmp = file.resolveSibling(HOTSET_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (HotKey key : hotSet) {
+                Gav gav = key.gav;
+                writer.write(String.join("\t", key.repositoryName, gav.getGroupId(), gav.getArtifactId(), gav.getVersion(),
+                        nullToEmpty(gav.getClassifier()), nullToEmpty(gav.getExtension()), nullToEmpty(gav.getPackaging())));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("save : {} coordinates written to {}", hotSet.size(), file);
+    }
+
+    private List<HotKey> load() {
+        List<HotKey> hotSet = new ArrayList<>();
+        try {
+            Path file = file();
+            if (!Files.exists(file)) {
+                return hotSet;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null && hotSet.size() < size) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 7) {
+                        continue;
+                    }
+                    try {
+                        hotSet.add(new HotKey(fields[0], Gav.of(fields[1], fields[2], fields[3], fields[4], fields[5], fields[6])));
+                    } catch (IllegalArgumentException e) {
+                        log.debug("load : skipping invalid line {}", line);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("load : could not read hot set: {}", e.toString());
+        }
+        return hotSet;
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value != null ? value : "";
+    }
+
+    private static final class Candidate {
+        private final HotKey key;
+        private final int estimate;
+
+        Candidate(final HotKey key, final int estimate) {
+            this.key = key;
+            this.estimate = estimate;
+        }
+    }
+
+    private static final class HotKey {
+        private final String repositoryName;
+        private final Gav gav;
+        private final int hash;
+
+        HotKey(final String repositoryName, final Gav gav) {
+            this.repositoryName = repositoryName;
+            this.gav = gav;
+            this.hash = 31 * repositoryName.hashCode() + gav.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof HotKey)) {
+                return false;
+            }
+            HotKey other = (HotKey) o;
+            return hash == other.hash && repositoryName.equals(other.repositoryName) && gav.equals(other.gav);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.entity.EntityHelper;
+import org.sonatype.nexus.common.entity.EntityId;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Write-behind of the last downloaded date of assets served by the content api, so that a download only needs a
+ * read transaction. Downloads of the same asset are coalesced until the next flush, which writes each asset once
+ * per interval, in one transaction per repository, with the time of its last download. A failed transaction (e.g. a
+ * concurrent modification) is tried once more. Pending downloads are flushed when the bundle stops.
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class LastDownloadedRecorder extends StateGuardLifecycleSupport {
+
+    private final long flushInterval;
+
+    private final ConcurrentMap<EntityId, Download> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public LastDownloadedRecorder(@Named("${nexus.localservice.lastDownloaded.flushIntervalSeconds:-60}") final long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("localservice-last-downloaded-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        scheduler = null;
+        flush();
+    }
+
+    /**
+     * Record a download of the asset.
+     *
+     * @param txRepository repository whose storage the asset was read with
+     * @param repositories repositories the asset may belong to
+     * @param asset        downloaded asset
+     */
+    public void record(final Repository txRepository, final List<Repository> repositories, final Asset asset) {
+        // the last download wins
+        pending.put(EntityHelper.id(asset), new Download(txRepository, repositories, asset.bucketId(), DateTime.now()));
+    }
+
+    /**
+     * Write pending downloads.
+     */
+    void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<Repository, Map<EntityId, Download>> byRepository = new HashMap<>();
+        for (EntityId assetId : new ArrayList<>(pending.keySet())) {
+            Download download = pending.remove(assetId);
+            if (download != null) {
+                byRepository.computeIfAbsent(download.txRepository, key -> new HashMap<>()).put(assetId, download);
+            }
+        }
+
+        for (Map.Entry<Repository, Map<EntityId, Download>> entry : byRepository.entrySet()) {
+            try {
+                flush(entry.getKey(), entry.getValue());
+            } catch (RuntimeException e) {
+                log.debug("flush : retrying {} downloads in repository {}: {}", entry.getValue().size(),
+                        entry.getKey().getName(), e.toString());
+                try {
+                    flush(entry.getKey(), entry.getValue());
+                } catch (RuntimeException retryException) {
+                    // a last downloaded date is not worth more
+                    log.warn("flush : could not record {} downloads in repository {}: {}", entry.getValue().size(),
+                            entry.getKey().getName(), retryException.toString());
+                }
+            }
+        }
+    }
+
+    private void flush(final Repository txRepository, final Map<EntityId, Download> downloads) {
+        Set<Repository> repositories = new LinkedHashSet<>();
+        for (Download download : downloads.values()) {
+            repositories.addAll(download.repositories);
+        }
+
+        StorageTx tx = txRepository.facet(StorageFacet.class).txSupplier().get();
+        try {
+            tx.begin();
+            Map<EntityId, Bucket> buckets = new HashMap<>();
+            for (Bucket bucket : tx.findBuckets(repositories)) {
+                buckets.put(EntityHelper.id(bucket), bucket);
+            }
+            int saved = 0;
+            for (Map.Entry<EntityId, Download> entry : downloads.entrySet()) {
+                Bucket bucket = buckets.get(entry.getValue().bucketId);
+                Asset asset = bucket != null ? tx.findAsset(entry.getKey(), bucket) : null;
+                DateTime downloaded = entry.getValue().downloaded;
+                if (asset != null && (asset.lastDownloaded() == null || asset.lastDownloaded().isBefore(downloaded))) {
+                    asset.lastDownloaded(downloaded);
+                    tx.saveAsset(asset);
+                    saved++;
+                }
+            }
+            tx.commit();
+            log.debug("flush : recorded {} downloads in repository {}", saved, txRepository.getName());
+        } finally {
+            tx.close();
+        }
+    }
+
+    private static final class Download {
+        private final Repository txRepository;
+        private final List<Repository> repositories;
+        private final EntityId bucketId;
+        private final DateTime downloaded;
+
+        Download(final Repository txRepository, final List<Repository> repositories, final EntityId bucketId,
+                 final DateTime downloaded) {
+            this.txRepository = txRepository;
+            this.repositories = repositories;
+            this.bucketId = bucketId;
+            this.downloaded = downloaded;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.types.HostedType;
+import org.sonatype.nexus.repository.types.ProxyType;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Timers of the resolve and content endpoints and of their stages, and meters of their outcomes, registered in the
+ * nexus metrics registry (metrics servlet and JMX). Metrics are named after the endpoint or stage and the type of
+ * the repository of the request, e.g. com.ptoceti.nexus3.plugin.localservice.LocalServiceResource.database.group
+ * or com.ptoceti.nexus3.plugin.localservice.LocalServiceResource.resolve.proxy.metadata.
+ *
+ * The usage of the loopback connection pool is registered as gauges, named
+ * com.ptoceti.nexus3.plugin.localservice.LoopbackHttpClient.pool.{leased,pending,available,max}.
+ */
+@Named
+@Singleton
+public class LocalServiceMetrics extends ComponentSupport {
+
+    /**
+     * Whole endpoint, or a stage of it.
+     */
+    public enum Stage {
+        RESOLVE("resolve"),
+        RESOLVE_ALL("resolveAll"),
+        CONTENT("content"),
+        METADATA("metadata"),
+        DATABASE("database"),
+        SEARCH("search"),
+        VIEW("view");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    public enum Endpoint {
+        RESOLVE("resolve"),
+        CONTENT("content");
+
+        private final String metricName;
+
+        Endpoint(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    /**
+     * Where the answer came from: storage, search index, synthesized from metadata, dispatched to the repository
+     * view, or nowhere.
+     */
+    public enum Outcome {
+        LOCAL("local"),
+        SEARCH("search"),
+        METADATA("metadata"),
+        REMOTE("remote"),
+        NOT_FOUND("notFound");
+
+        private final String metricName;
+
+        Outcome(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    /**
+     * Repository types, last one for requests without repository (not found, or a bulk request).
+     */
+    private static final String[] KINDS = {HostedType.NAME, ProxyType.NAME, GroupType.NAME, "unknown"};
+
+    private final Timer[][] timers;
+    private final Meter[][][] meters;
+    private final Meter[] coalesced;
+
+    @Inject
+    public LocalServiceMetrics(final MetricRegistry registry, final LoopbackHttpClient loopbackHttpClient) {
+        checkNotNull(registry);
+        checkNotNull(loopbackHttpClient);
+        timers = new Timer[Stage.values().length][KINDS.length];
+        for (Stage stage : Stage.values()) {
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                timers[stage.ordinal()][kind] = registry.timer(name(LocalServiceResource.class, stage.metricName, KINDS[kind]));
+            }
+        }
+        meters = new Meter[Endpoint.values().length][KINDS.length][Outcome.values().length];
+        for (Endpoint endpoint : Endpoint.values()) {
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                for (Outcome outcome : Outcome.values()) {
+                    meters[endpoint.ordinal()][kind][outcome.ordinal()] = registry.meter(
+                            name(LocalServiceResource.class, endpoint.metricName, KINDS[kind], outcome.metricName));
+                }
+            }
+        }
+        coalesced = new Meter[KINDS.length];
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            coalesced[kind] = registry.meter(name(LocalServiceResource.class, Endpoint.RESOLVE.metricName, KINDS[kind], "coalesced"));
+        }
+
+        gauge(registry, "leased", loopbackHttpClient::getLeased);
+        gauge(registry, "pending", loopbackHttpClient::getPending);
+        gauge(registry, "available", loopbackHttpClient::getAvailable);
+        gauge(registry, "max", loopbackHttpClient::getMax);
+    }
+
+    private static void gauge(final MetricRegistry registry, final String metric, final Gauge<Integer> gauge) {
+        String gaugeName = name(LoopbackHttpClient.class, "pool", metric);
+        // the registry outlives the bundle: replace the gauge of a previous instance
+        registry.remove(gaugeName);
+        registry.register(gaugeName, gauge);
+    }
+
+    /**
+     * Start timing a stage, the returned context is to be stopped (or closed) when done.
+     *
+     * @param repository repository of the request, may be null
+     */
+    public Timer.Context time(final Stage stage, final Repository repository) {
+        return timers[stage.ordinal()][kind(repository)].time();
+    }
+
+    public void outcome(final Endpoint endpoint, final Repository repository, final Outcome outcome) {
+        meters[endpoint.ordinal()][kind(repository)][outcome.ordinal()].mark();
+    }
+
+    /**
+     * Outcome of a resolution: present locally, from the search index (it has a sha1), or synthesized from metadata.
+     */
+    public void resolved(final Repository repository, final Data data) {
+        Outcome outcome;
+        if (data == null) {
+            outcome = Outcome.NOT_FOUND;
+        } else if ("true".equals(data.presentLocally)) {
+            outcome = Outcome.LOCAL;
+        } else if (data.sha1 != null) {
+            outcome = Outcome.SEARCH;
+        } else {
+            outcome = Outcome.METADATA;
+        }
+        outcome(Endpoint.RESOLVE, repository, outcome);
+    }
+
+    /**
+     * A resolve waited for an identical one in flight instead of resolving by itself.
+     */
+    public void coalesced(final Repository repository) {
+        coalesced[kind(repository)].mark();
+    }
+
+    private static int kind(final Repository repository) {
+        if (repository != null) {
+            String type = repository.getType().getValue();
+            for (int kind = 0; kind < KINDS.length - 1; kind++) {
+                if (KINDS[kind].equals(type)) {
+                    return kind;
+                }
+            }
+        }
+        return KINDS.length - 1;
+    }
+}
@@ -1,38 +1,31 @@
 package com.ptoceti.nexus3.plugin.localservice;
 
+import com.codahale.metrics.Timer;
 import com.google.common.base.Supplier;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.commons.lang.StringUtils;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.apache.maven.artifact.repository.metadata.Snapshot;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.search.SearchHit;
 import org.sonatype.goodies.common.ComponentSupport;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.common.collect.DetachingMap;
+import org.sonatype.nexus.common.entity.EntityId;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.group.GroupFacet;
 import org.sonatype.nexus.repository.manager.RepositoryManager;
-import org.sonatype.nexus.repository.maven.MavenFacet;
+import org.sonatype.nexus.repository.maven.MavenPath;
 import org.sonatype.nexus.repository.maven.VersionPolicy;
 import org.apache.maven.artifact.repository.metadata.Metadata;
-import org.sonatype.nexus.repository.search.SearchService;
 import org.sonatype.nexus.repository.storage.*;
 import org.sonatype.nexus.repository.types.GroupType;
 import org.sonatype.nexus.repository.types.HostedType;
 import org.sonatype.nexus.repository.types.ProxyType;
+import org.sonatype.nexus.repository.http.HttpMethods;
+import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.ViewFacet;
 import org.sonatype.nexus.rest.Resource;
 
-import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
-import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.sonatype.nexus.repository.maven.internal.Constants.SNAPSHOT_VERSION_SUFFIX;
 import org.sonatype.nexus.repository.maven.internal.Attributes;
 
@@ -42,18 +35,27 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.ptoceti.nexus3.plugin.localservice.LocalServiceMetrics.Endpoint;
+import static com.ptoceti.nexus3.plugin.localservice.LocalServiceMetrics.Outcome;
+import static com.ptoceti.nexus3.plugin.localservice.LocalServiceMetrics.Stage;
 
 @Named("LocalService")
 @Singleton
@@ -66,18 +68,75 @@ public class LocalServiceResource  extends ComponentSupport
     private static final Response NOT_FOUND = Response.status(404).build();
 
     private final RepositoryManager repositoryManager;
-    private final SearchService searchService;
+    private final ArtifactSearch artifactSearch;
+
+    private final MetaDataHelper metaDataHelper;
+    private final GroupMemberLookup groupMemberLookup;
+    private final ResolvedVersionCache resolvedVersionCache;
+    private final LastDownloadedRecorder lastDownloadedRecorder;
+    private final LocalServiceMetrics metrics;
+    private final VersionIndex versionIndex;
+    private final RequestExecutor requestExecutor;
+    private final ContentArchiver contentArchiver;
+    private final HotSet hotSet;
 
-    MetaDataHelper metaDataHelper;
+    /**
+     * Identical resolve requests running at the same time share one resolution.
+     */
+    private final SingleFlight<ResolveKey, ArtifactResolution> resolveFlights = new SingleFlight<>();
 
+    /**
+     * Look up assets of all group members with one query instead of one query per member.
+     */
+    private final boolean groupSingleQuery;
 
-    @Inject
-    LocalServiceResource(SearchService searchService, RepositoryManager repositoryManager) {
-        this.searchService = checkNotNull(searchService);
-        this.repositoryManager = checkNotNull(repositoryManager);
+    /**
+     * Max number of coordinates in one bulk resolve request.
+     */
+    private final int bulkMaxCoordinates;
+
+    /**
+     * Cache-Control max age (seconds) of resolve responses, for fixed versions, LATEST / RELEASE and base snapshot versions.
+     */
+    private final int resolveMaxAgeFixed;
+    private final int resolveMaxAgeLatest;
+    private final int resolveMaxAgeSnapshot;
 
-        metaDataHelper = new MetaDataHelper();
+    /**
+     * Mark resolve responses public, so that shared caches keep them for requests carrying Authorization; private
+     * otherwise.
+     */
+    private final boolean resolvePublic;
 
+    @Inject
+    LocalServiceResource(ArtifactSearch artifactSearch, RepositoryManager repositoryManager, MetaDataHelper metaDataHelper,
+                         GroupMemberLookup groupMemberLookup,
+                         ResolvedVersionCache resolvedVersionCache, LastDownloadedRecorder lastDownloadedRecorder,
+                         LocalServiceMetrics metrics, VersionIndex versionIndex, RequestExecutor requestExecutor,
+                         ContentArchiver contentArchiver, HotSet hotSet,
+                         @Named("${nexus.localservice.group.singleQuery:-true}") boolean groupSingleQuery,
+                         @Named("${nexus.localservice.bulk.maxCoordinates:-1000}") int bulkMaxCoordinates,
+                         @Named("${nexus.localservice.resolve.maxAge.fixed:-86400}") int resolveMaxAgeFixed,
+                         @Named("${nexus.localservice.resolve.maxAge.latest:-60}") int resolveMaxAgeLatest,
+                         @Named("${nexus.localservice.resolve.maxAge.snapshot:-30}") int resolveMaxAgeSnapshot,
+                         @Named("${nexus.localservice.resolve.public:-true}") boolean resolvePublic) {
+        this.artifactSearch = checkNotNull(artifactSearch);
+        this.repositoryManager = checkNotNull(repositoryManager);
+        this.metaDataHelper = checkNotNull(metaDataHelper);
+        this.groupMemberLookup = checkNotNull(groupMemberLookup);
+        this.resolvedVersionCache = checkNotNull(resolvedVersionCache);
+        this.lastDownloadedRecorder = checkNotNull(lastDownloadedRecorder);
+        this.metrics = checkNotNull(metrics);
+        this.versionIndex = checkNotNull(versionIndex);
+        this.requestExecutor = checkNotNull(requestExecutor);
+        this.contentArchiver = checkNotNull(contentArchiver);
+        this.hotSet = checkNotNull(hotSet);
+        this.groupSingleQuery = groupSingleQuery;
+        this.bulkMaxCoordinates = bulkMaxCoordinates;
+        this.resolveMaxAgeFixed = resolveMaxAgeFixed;
+        this.resolveMaxAgeLatest = resolveMaxAgeLatest;
+        this.resolveMaxAgeSnapshot = resolveMaxAgeSnapshot;
+        this.resolvePublic = resolvePublic;
     }
 
     /**
@@ -90,25 +149,45 @@ public class LocalServiceResource  extends ComponentSupport
      * @param classifier
      * @param extension
      * @param packaging
-     * @return
+     * @param all           list every asset of the resolved version (all classifiers and extensions) instead of the
+     *                      one of the coordinates
+     * @param asyncResponse answered from the {@link RequestExecutor} pool
      */
     @GET
     @Path("resolve")
     @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
-    public Response resolve(
+    public void resolve(
             @QueryParam("r") String repositoryName,
             @QueryParam("g") String groupId,
             @QueryParam("a") String artifactId,
             @QueryParam("v") String version,
             @QueryParam("c") String classifier,
             @QueryParam("e") @DefaultValue("jar") String extension,
-            @QueryParam("p") String packaging
+            @QueryParam("p") String packaging,
+            @QueryParam("all") @DefaultValue("false") boolean all,
+            @Context Request request,
+            @Suspended AsyncResponse asyncResponse
     ) {
+        requestExecutor.submit(asyncResponse, "resolve",
+                () -> resolveResponse(repositoryName, groupId, artifactId, version, classifier, extension, packaging, all, request));
+    }
+
+    Response resolveResponse(String repositoryName, String groupId, String artifactId, String version, String classifier,
+                             String extension, String packaging, boolean all, Request request) {
 
         log.debug("Resolve: received request for r={} g={} a={} v={} c={} e={} p={}", repositoryName, groupId, artifactId, version, classifier, extension, packaging);
         // check params
         if (isBlank(repositoryName) || isBlank(groupId) || isBlank(artifactId) || isBlank(version)) {
             log.debug("Resolve: params r - g - a - v  cannot be null or blank");
+            metrics.outcome(Endpoint.RESOLVE, null, Outcome.NOT_FOUND);
+            return NOT_FOUND;
+        }
+        Gav gav;
+        try {
+            gav = Gav.of(groupId, artifactId, version, classifier, extension, packaging);
+        } catch (IllegalArgumentException ex) {
+            log.debug("Resolve: invalid coordinates: {}", ex.getMessage());
+            metrics.outcome(Endpoint.RESOLVE, null, Outcome.NOT_FOUND);
             return NOT_FOUND;
         }
 
@@ -117,92 +196,383 @@ public class LocalServiceResource  extends ComponentSupport
         // be sure it is a maven repo
         if (null == repository || !repository.getFormat().getValue().equals("maven2")) {
             log.debug("Resolve: repository {} not found or not Maven2", repositoryName);
+            metrics.outcome(Endpoint.RESOLVE, null, Outcome.NOT_FOUND);
             return NOT_FOUND;
         }
 
-        String baseVersion = version;
-        String resolvedVersion = version;
+        hotSet.record(repository.getName(), gav);
+        if (all) {
+            return resolveAssetsResponse(repository, gav, request);
+        }
+
+        ArtifactResolution artifact;
+        Timer.Context timer = metrics.time(Stage.RESOLVE, repository);
+        try {
+            artifact = resolveFlights.execute(new ResolveKey(repository.getName(), gav),
+                    () -> resolveArtifact(repository, gav), () -> metrics.coalesced(repository));
+        } finally {
+            timer.stop();
+        }
+        metrics.resolved(repository, artifact != null ? artifact.data : null);
+
+        if (artifact != null) {
+            EntityTag etag = resolutionTag(artifact);
+            CacheControl cacheControl = resolveCacheControl(version);
+            Response.ResponseBuilder notModified = request != null ? request.evaluatePreconditions(etag) : null;
+            if (notModified != null) {
+                log.debug("Resolve: not modified");
+                return notModified.tag(etag).cacheControl(cacheControl).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+            }
+            return Response.ok(artifact).tag(etag).cacheControl(cacheControl).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+        }
+
+        log.debug("Resolve: not asset found");
+        return NOT_FOUND;
+    }
+
+    private static final class ResolveKey {
+        private final String repositoryName;
+        private final Gav gav;
+
+        ResolveKey(String repositoryName, Gav gav) {
+            this.repositoryName = repositoryName;
+            this.gav = gav;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResolveKey)) {
+                return false;
+            }
+            ResolveKey other = (ResolveKey) o;
+            return repositoryName.equals(other.repositoryName) && gav.equals(other.gav);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * repositoryName.hashCode() + gav.hashCode();
+        }
+    }
+
+    /**
+     * Resolve the requested version (LATEST, RELEASE, x-SNAPSHOT), then look up the artifact.
+     *
+     * @return the artifact, null if not found
+     */
+    ArtifactResolution resolveArtifact(Repository repository, Gav gav) {
+        ResolvedVersion resolved = resolveVersion(repository, gav);
+        if (resolved == null) {
+            return null;
+        }
+
+        ArtifactResolution artifact = findArtifactLocal(repository, resolved.gav);
+        if (artifact == null) {
+            artifact = findArtifactNotLocal(repository, resolved.gav, resolved.baseVersion);
+        }
+        return artifact;
+    }
+
+    /**
+     * Resolve coordinates of the hot set at startup, to fill the metadata, resolved versions and database caches.
+     *
+     * @return true if resolved
+     */
+    boolean warmUp(String repositoryName, Gav gav) {
+        Repository repository = repositoryManager.get(repositoryName);
+        if (null == repository || !repository.getFormat().getValue().equals("maven2")) {
+            return false;
+        }
+        return resolveArtifact(repository, gav) != null;
+    }
 
-        Metadata componentMetaData = null;
-        Metadata versionMetaData = null;
+    /**
+     * Resolve LATEST or RELEASE, then a base snapshot version to its last timestamped version.
+     *
+     * @return coordinates with the resolved version, null if not found
+     */
+    ResolvedVersion resolveVersion(Repository repository, Gav gav) {
+        String resolvedVersion = gav.getVersion();
 
         try {
             if (resolvedVersion.equals("LATEST")) {
-                componentMetaData = metaDataHelper.read(repository, metaDataHelper.metadataPath(groupId, artifactId, null));
-                if (componentMetaData != null) {
-                    resolvedVersion = getLatestVersionFromMetaData(repository, componentMetaData);
-                }
+                resolvedVersion = resolveLatestVersion(repository, gav);
                 if (resolvedVersion == null) {
                     log.debug("Resolve: not latest version found");
                 }
             } else if (resolvedVersion.equals("RELEASE")) {
-                componentMetaData = metaDataHelper.read(repository, metaDataHelper.metadataPath(groupId, artifactId, null));
-                if (componentMetaData != null) {
-                    resolvedVersion = getReleaseVersionFromMetaData(repository, componentMetaData);
-                }
+                resolvedVersion = resolveReleaseVersion(repository, gav);
                 if (resolvedVersion == null) {
                     log.debug("Resolve: not release version found");
                 }
             }
 
             if (resolvedVersion == null) {
-                return NOT_FOUND;
+                return null;
             }
 
-            baseVersion = resolvedVersion;
+            String baseVersion = resolvedVersion;
             if (resolvedVersion.endsWith(SNAPSHOT_VERSION_SUFFIX)) {
-                versionMetaData = metaDataHelper.read(repository, metaDataHelper.metadataPath(groupId, artifactId, resolvedVersion));
-                if (versionMetaData == null) {
-                    return NOT_FOUND;
-                }
-                resolvedVersion = getSnapshotVersionFromMetaData(repository, versionMetaData, resolvedVersion);
+                resolvedVersion = resolveSnapshotVersion(repository, gav, resolvedVersion);
             }
 
+            if (resolvedVersion == null) {
+                return null;
+            }
+            return new ResolvedVersion(baseVersion, gav.withVersion(resolvedVersion));
+
         } catch (XmlPullParserException ex) {
             log.debug("Resolve: could not get metadata");
-            return NOT_FOUND;
+            return null;
         } catch (IOException ex) {
             log.debug("Resolve: could not get metadatak");
-            return NOT_FOUND;
+            return null;
+        } catch (IllegalArgumentException ex) {
+            log.debug("Resolve: invalid resolved version: {}", ex.getMessage());
+            return null;
         }
+    }
+
+    private static final class ResolvedVersion {
+        /**
+         * Version directory: the base version for a timestamped snapshot
+         */
+        private final String baseVersion;
+        private final Gav gav;
 
-        if (resolvedVersion == null) {
+        ResolvedVersion(String baseVersion, Gav gav) {
+            this.baseVersion = baseVersion;
+            this.gav = gav;
+        }
+    }
+
+    private Response resolveAssetsResponse(Repository repository, Gav gav, Request request) {
+        ArtifactAssets assets;
+        Timer.Context timer = metrics.time(Stage.RESOLVE, repository);
+        try {
+            assets = resolveAssets(repository, gav);
+        } finally {
+            timer.stop();
+        }
+        metrics.outcome(Endpoint.RESOLVE, repository, assets != null ? Outcome.LOCAL : Outcome.NOT_FOUND);
+        if (assets == null) {
+            log.debug("Resolve: not asset found");
             return NOT_FOUND;
         }
 
-        ArtifactResolution artifact = null;
+        EntityTag etag = assetsTag(assets);
+        CacheControl cacheControl = resolveCacheControl(gav.getVersion());
+        Response.ResponseBuilder notModified = request != null ? request.evaluatePreconditions(etag) : null;
+        if (notModified != null) {
+            log.debug("Resolve: not modified");
+            return notModified.tag(etag).cacheControl(cacheControl).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+        }
+        return Response.ok(assets).tag(etag).cacheControl(cacheControl).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+    }
 
-        if (repository.getType().getValue().equals(HostedType.NAME)) {
-            artifact = searchAssetLocal(repository, groupId, artifactId, classifier, extension, packaging, resolvedVersion);
-        } else if ( repository.getType().getValue().equals(GroupType.NAME)){
-            GroupFacet groupFacet = repository.facet(GroupFacet.class);
-            List<Repository> repositories = groupFacet.leafMembers();
-            for(Repository nextRepository : repositories ){
-                if( nextRepository.getType().getValue().equals(HostedType.NAME) ||
-                        nextRepository.getType().getValue().equals(ProxyType.NAME)){
-                    artifact = searchAssetLocal(nextRepository, groupId, artifactId, classifier, extension, packaging, resolvedVersion);
-                    if( artifact != null) {break;}
-                }
+    /**
+     * Resolve the requested version, then list every asset of the component (all classifiers and extensions) with
+     * one query. For a group, the assets come from the first member that has the component.
+     *
+     * @return the assets present in storage, null if none
+     */
+    ArtifactAssets resolveAssets(Repository repository, Gav gav) {
+        ResolvedVersion resolved = resolveVersion(repository, gav);
+        if (resolved == null) {
+            return null;
+        }
+
+        List<Repository> repositories;
+        if (repository.getType().getValue().equals(GroupType.NAME)) {
+            repositories = storageMembers(repository);
+        } else if (repository.getType().getValue().equals(HostedType.NAME) || repository.getType().getValue().equals(ProxyType.NAME)) {
+            repositories = Collections.singletonList(repository);
+        } else {
+            return null;
+        }
+
+        List<Asset> assets;
+        Timer.Context timer = metrics.time(Stage.DATABASE, repository);
+        final StorageTx tx = repository.facet(StorageFacet.class).txSupplier().get();
+        try {
+            tx.begin();
+            assets = AssetBatch.componentAssets(tx, repositories, resolved.gav);
+        } finally {
+            tx.close();
+            timer.stop();
+        }
+
+        ArtifactAssets artifactAssets = new ArtifactAssets();
+        for (Asset asset : assets) {
+            ArtifactResolution artifact = toArtifactResolution(asset);
+            if (artifact != null) {
+                artifactAssets.data.add(artifact.data);
             }
-            if(artifact == null) {
-                artifact = searchAssetRemote(repository, groupId, artifactId, classifier, extension, packaging, resolvedVersion);
+        }
+        return artifactAssets.data.isEmpty() ? null : artifactAssets;
+    }
+
+    /**
+     * Bulk version of {@link #resolve}: resolve a list of coordinates in one call. Each coordinate gets its own
+     * status (200, 400 if a required field is blank, 404 if not found). Coordinates of the same repository and
+     * groupId:artifactId share their metadata reads and are looked up in storage with one query.
+     *
+     * @param request       coordinates to resolve
+     * @param asyncResponse answered from the {@link RequestExecutor} pool with the resolutions, in the order of the request
+     */
+    @POST
+    @Path("resolve")
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
+    @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
+    public void resolveAll(ArtifactCoordinates request, @Suspended AsyncResponse asyncResponse) {
+        requestExecutor.submit(asyncResponse, "resolveAll", () -> resolveAllResponse(request));
+    }
+
+    Response resolveAllResponse(ArtifactCoordinates request) {
+        if (request == null || request.coordinates == null) {
+            return Response.status(400).build();
+        }
+        log.debug("ResolveAll: received request for {} coordinates", request.coordinates.size());
+        if (request.coordinates.size() > bulkMaxCoordinates) {
+            log.debug("ResolveAll: more than {} coordinates", bulkMaxCoordinates);
+            return Response.status(400).build();
+        }
+
+        Timer.Context timer = metrics.time(Stage.RESOLVE_ALL, null);
+        try {
+            return Response.ok(resolveAll(request.coordinates)).build();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    ArtifactResolutions resolveAll(List<ArtifactCoordinate> coordinates) {
+        ArtifactResolutions resolutions = new ArtifactResolutions();
+        List<BulkItem> bulkItems = new ArrayList<>();
+        // items to look up in storage, by repository and groupId:artifactId
+        Map<String, List<BulkItem>> families = new LinkedHashMap<>();
+
+        for (ArtifactCoordinate coordinate : coordinates) {
+            ArtifactResolutionItem item = new ArtifactResolutionItem();
+            item.coordinate = coordinate;
+            item.status = 404;
+            resolutions.items.add(item);
+
+            if (coordinate == null || isBlank(coordinate.repository) || isBlank(coordinate.groupId)
+                    || isBlank(coordinate.artifactId) || isBlank(coordinate.version)) {
+                item.status = 400;
+                continue;
             }
-            if( artifact == null) {
-                artifact = makeArtifactFromMetaData(groupId, artifactId, classifier, extension, resolvedVersion, baseVersion, versionMetaData);
+            Gav gav;
+            try {
+                // jar when not given, as for the single resolve
+                gav = Gav.of(coordinate.groupId, coordinate.artifactId, coordinate.version, coordinate.classifier,
+                        coordinate.extension != null ? coordinate.extension : "jar", coordinate.packaging);
+            } catch (IllegalArgumentException ex) {
+                item.status = 400;
+                continue;
             }
-        } else if ( repository.getType().getValue().equals(ProxyType.NAME )){
-            artifact = searchAssetLocal(repository, groupId, artifactId, classifier, extension, packaging, resolvedVersion);
-            if( artifact == null) {
-                artifact = makeArtifactFromMetaData(groupId, artifactId, classifier, extension, resolvedVersion, baseVersion, versionMetaData);
+            Repository repository = repositoryManager.get(coordinate.repository);
+            if (null == repository || !repository.getFormat().getValue().equals("maven2")) {
+                metrics.outcome(Endpoint.RESOLVE, null, Outcome.NOT_FOUND);
+                continue;
             }
+
+            BulkItem bulkItem = new BulkItem(item, repository);
+            bulkItems.add(bulkItem);
+            try {
+                String resolvedVersion = gav.getVersion();
+                if (resolvedVersion.equals("LATEST")) {
+                    resolvedVersion = resolveLatestVersion(repository, gav);
+                } else if (resolvedVersion.equals("RELEASE")) {
+                    resolvedVersion = resolveReleaseVersion(repository, gav);
+                }
+                if (resolvedVersion == null) {
+                    continue;
+                }
+                bulkItem.baseVersion = resolvedVersion;
+                if (resolvedVersion.endsWith(SNAPSHOT_VERSION_SUFFIX)) {
+                    resolvedVersion = resolveSnapshotVersion(repository, gav, resolvedVersion);
+                }
+                if (resolvedVersion == null) {
+                    continue;
+                }
+                bulkItem.gav = gav.withVersion(resolvedVersion);
+            } catch (XmlPullParserException | IOException | IllegalArgumentException ex) {
+                log.debug("ResolveAll: could not get metadata for {}", gav);
+                continue;
+            }
+            families.computeIfAbsent(repository.getName() + ':' + gav.getGroupId() + ':' + gav.getArtifactId(),
+                    key -> new ArrayList<>()).add(bulkItem);
         }
 
-        if (artifact != null) {
-            return Response.ok(artifact).build();
+        for (List<BulkItem> family : families.values()) {
+            resolveFamily(family);
+        }
+        for (BulkItem bulkItem : bulkItems) {
+            metrics.resolved(bulkItem.repository, bulkItem.item.data);
         }
 
-        log.debug("Resolve: not asset found");
-        return NOT_FOUND;
+        return resolutions;
+    }
+
+    /**
+     * Resolve items of the same repository and groupId:artifactId, with one storage query for all of them.
+     */
+    void resolveFamily(List<BulkItem> family) {
+        Repository repository = family.get(0).repository;
+        Gav familyGav = family.get(0).gav;
+
+        List<Repository> repositories = repository.getType().getValue().equals(GroupType.NAME) ?
+                storageMembers(repository) : Collections.singletonList(repository);
+        Set<String> versions = new LinkedHashSet<>();
+        for (BulkItem bulkItem : family) {
+            versions.add(bulkItem.gav.getVersion());
+        }
+
+        Timer.Context timer = metrics.time(Stage.DATABASE, repository);
+        final StorageTx tx = repository.facet(StorageFacet.class).txSupplier().get();
+        try {
+            tx.begin();
+            AssetBatch batch = AssetBatch.load(tx, repositories, familyGav.getGroupId(), familyGav.getArtifactId(), versions);
+            for (BulkItem bulkItem : family) {
+                Asset asset = batch.find(bulkItem.gav);
+                if (asset != null) {
+                    ArtifactResolution artifact = toArtifactResolution(asset);
+                    bulkItem.item.data = artifact != null ? artifact.data : null;
+                }
+            }
+        } finally {
+            tx.close();
+            timer.stop();
+        }
+
+        for (BulkItem bulkItem : family) {
+            if (bulkItem.item.data == null) {
+                ArtifactResolution artifact = findArtifactNotLocal(repository, bulkItem.gav, bulkItem.baseVersion);
+                bulkItem.item.data = artifact != null ? artifact.data : null;
+            }
+            if (bulkItem.item.data != null) {
+                bulkItem.item.status = 200;
+            }
+        }
+    }
+
+    private static final class BulkItem {
+        private final ArtifactResolutionItem item;
+        private final Repository repository;
+        private String baseVersion;
+        /**
+         * Coordinates with the resolved version
+         */
+        private Gav gav;
+
+        BulkItem(ArtifactResolutionItem item, Repository repository) {
+            this.item = item;
+            this.repository = repository;
+        }
     }
 
     /**
@@ -214,23 +584,42 @@ public class LocalServiceResource  extends ComponentSupport
      * @param classifier
      * @param extension
      * @param packaging
-     * @return
+     * @param asyncResponse answered from the {@link RequestExecutor} pool
      */
     @GET
     @Path("content")
-    public Response content(
+    public void content(
             @QueryParam("r") String repositoryName,
             @QueryParam("g") String groupId,
             @QueryParam("a") String artifactId,
             @QueryParam("v") String version,
             @QueryParam("c") String classifier,
             @QueryParam("e") @DefaultValue("jar") String extension,
-            @QueryParam("p") String packaging
+            @QueryParam("p") String packaging,
+            @Context Request request,
+            @Context HttpHeaders httpHeaders,
+            @Suspended AsyncResponse asyncResponse
     ) {
+        requestExecutor.submit(asyncResponse, "content",
+                () -> contentResponse(repositoryName, groupId, artifactId, version, classifier, extension, packaging,
+                        request, httpHeaders));
+    }
+
+    Response contentResponse(String repositoryName, String groupId, String artifactId, String version, String classifier,
+                             String extension, String packaging, Request request, HttpHeaders httpHeaders) {
         log.debug("Content: received request for r={} g={} a={} v={} c={} e={} p={}", repositoryName, groupId, artifactId, version, classifier, extension, packaging);
         // check params
         if (isBlank(repositoryName) || isBlank(groupId) || isBlank(artifactId) || isBlank(version)) {
             log.debug("Content: params r - g - a - v  cannot be null or blank");
+            metrics.outcome(Endpoint.CONTENT, null, Outcome.NOT_FOUND);
+            return NOT_FOUND;
+        }
+        Gav gav;
+        try {
+            gav = Gav.of(groupId, artifactId, version, classifier, extension, packaging);
+        } catch (IllegalArgumentException ex) {
+            log.debug("Content: invalid coordinates: {}", ex.getMessage());
+            metrics.outcome(Endpoint.CONTENT, null, Outcome.NOT_FOUND);
             return NOT_FOUND;
         }
 
@@ -239,88 +628,344 @@ public class LocalServiceResource  extends ComponentSupport
         // be sure it is a maven repo
         if (null == repository || !repository.getFormat().getValue().equals("maven2")) {
             log.debug("Content: repository {} not found or not Maven2", repositoryName);
+            metrics.outcome(Endpoint.CONTENT, null, Outcome.NOT_FOUND);
             return NOT_FOUND;
         }
+        hotSet.record(repository.getName(), gav);
 
-        String baseVersion = version;
-        String resolvedVersion = version;
+        Response response;
+        Timer.Context timer = metrics.time(Stage.CONTENT, repository);
+        try {
+            response = findContent(repository, gav, request, httpHeaders);
+        } finally {
+            timer.stop();
+        }
 
-        Metadata componentMetaData = null;
-        Metadata versionMetaData = null;
+        if (response != null) {
+            return response;
+        }
+        metrics.outcome(Endpoint.CONTENT, repository, Outcome.NOT_FOUND);
+        return NOT_FOUND;
+    }
+
+    /**
+     * Batch version of {@link #content}: the content of a list of coordinates, streamed as one zip or tar archive.
+     * Entries are named groupId path / artifactId / file name, in the order of the request; coordinates not found
+     * are listed in a last missing.txt entry.
+     *
+     * @param request       coordinates of the artifacts
+     * @param format        zip or tar
+     * @param asyncResponse answered from the {@link RequestExecutor} pool
+     */
+    @POST
+    @Path("content")
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, MediaType.TEXT_XML})
+    @Produces({"application/zip", "application/x-tar"})
+    public void contentAll(ArtifactCoordinates request,
+                           @QueryParam("format") @DefaultValue("zip") String format,
+                           @Suspended AsyncResponse asyncResponse) {
+        requestExecutor.submit(asyncResponse, "contentAll", () -> contentAllResponse(request, format));
+    }
 
+    Response contentAllResponse(ArtifactCoordinates request, String format) {
+        if (request == null || request.coordinates == null) {
+            return Response.status(400).build();
+        }
+        log.debug("ContentAll: received request for {} coordinates as {}", request.coordinates.size(), format);
+        if (request.coordinates.size() > bulkMaxCoordinates) {
+            log.debug("ContentAll: more than {} coordinates", bulkMaxCoordinates);
+            return Response.status(400).build();
+        }
+        ContentArchiver.Format archiveFormat;
         try {
-            if (resolvedVersion.equals("LATEST")) {
-                componentMetaData = metaDataHelper.read(repository, metaDataHelper.metadataPath(groupId, artifactId, null));
-                if (componentMetaData != null) {
-                    resolvedVersion = getLatestVersionFromMetaData(repository, componentMetaData);
-                }
-                if (resolvedVersion == null) {
-                    log.debug("Content: not latest version found");
-                }
-            } else if (resolvedVersion.equals("RELEASE")) {
-                componentMetaData = metaDataHelper.read(repository, metaDataHelper.metadataPath(groupId, artifactId, null));
-                if (componentMetaData != null) {
-                    resolvedVersion = getReleaseVersionFromMetaData(repository, componentMetaData);
-                }
-                if (resolvedVersion == null) {
-                    log.debug("Content: not release version found");
-                }
-            }
-            if (resolvedVersion == null) {
-                return NOT_FOUND;
-            }
+            archiveFormat = ContentArchiver.Format.valueOf(format.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            log.debug("ContentAll: unknown format {}", format);
+            return Response.status(400).build();
+        }
 
+        List<ArtifactCoordinate> coordinates = request.coordinates;
+        List<String> labels = new ArrayList<>(coordinates.size());
+        for (ArtifactCoordinate coordinate : coordinates) {
+            labels.add(coordinate == null ? "null" : coordinate.repository + ":" + coordinate.groupId + ":"
+                    + coordinate.artifactId + ":" + coordinate.version + ":" + StringUtils.defaultString(coordinate.classifier)
+                    + ":" + StringUtils.defaultString(coordinate.extension, "jar"));
+        }
+        return Response.ok(contentArchiver.archive(archiveFormat, labels, index -> archiveEntry(coordinates.get(index))), archiveFormat.getMediaType())
+                .header("Content-Disposition", "attachment;filename=\"artifacts." + archiveFormat.getExtension() + "\"")
+                .build();
+    }
 
+    /**
+     * Content of one coordinate of a batch, null if invalid or not found.
+     */
+    ContentArchiver.Entry archiveEntry(ArtifactCoordinate coordinate) {
+        if (coordinate == null || isBlank(coordinate.repository) || isBlank(coordinate.groupId)
+                || isBlank(coordinate.artifactId) || isBlank(coordinate.version)) {
+            return null;
+        }
+        Gav gav;
+        try {
+            gav = Gav.of(coordinate.groupId, coordinate.artifactId, coordinate.version, coordinate.classifier,
+                    coordinate.extension != null ? coordinate.extension : "jar", coordinate.packaging);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        Repository repository = repositoryManager.get(coordinate.repository);
+        if (null == repository || !repository.getFormat().getValue().equals("maven2")) {
+            metrics.outcome(Endpoint.CONTENT, null, Outcome.NOT_FOUND);
+            return null;
+        }
 
-            baseVersion = resolvedVersion;
-            if (resolvedVersion.endsWith(SNAPSHOT_VERSION_SUFFIX) && versionMetaData != null) {
-                versionMetaData = metaDataHelper.read(repository, metaDataHelper.metadataPath(groupId, artifactId, resolvedVersion));
-                if (versionMetaData == null) {
-                    return NOT_FOUND;
-                }
-                resolvedVersion = getSnapshotVersionFromMetaData(repository, versionMetaData, resolvedVersion);
-            }
+        Response response;
+        Timer.Context timer = metrics.time(Stage.CONTENT, repository);
+        try {
+            response = findContent(repository, gav, null, null);
+        } finally {
+            timer.stop();
+        }
+        if (response == null) {
+            metrics.outcome(Endpoint.CONTENT, repository, Outcome.NOT_FOUND);
+            return null;
+        }
+        String filename = attachmentFilename(response);
+        if (response.getStatus() != 200 || filename == null) {
+            closeEntity(response);
+            return null;
+        }
+        return new ContentArchiver.Entry(gav.getGroupPath() + "/" + gav.getArtifactId() + "/" + filename, response);
+    }
 
-        } catch (XmlPullParserException ex) {
-            log.debug("Content: could not get metadata");
-            return NOT_FOUND;
-        } catch (IOException ex) {
-            log.debug("Content: could not get metadatak");
-            return NOT_FOUND;
+    /**
+     * Last path segment of the file name of the Content-Disposition of a content response.
+     */
+    static String attachmentFilename(Response response) {
+        String disposition = response.getHeaderString("Content-Disposition");
+        int start = disposition != null ? disposition.indexOf("filename=\"") : -1;
+        if (start < 0) {
+            return null;
         }
+        String filename = disposition.substring(start + "filename=\"".length(), disposition.lastIndexOf('"'));
+        filename = filename.substring(filename.lastIndexOf('/') + 1);
+        return filename.isEmpty() ? null : filename;
+    }
+
+    /**
+     * Resolve the requested version (LATEST, RELEASE, x-SNAPSHOT), then get the content from storage, or through
+     * the repository view.
+     *
+     * @return the content response, null if not found
+     */
+    Response findContent(Repository repository, Gav gav, Request request, HttpHeaders httpHeaders) {
+        ResolvedVersion resolved = resolveVersion(repository, gav);
+        if (resolved == null) {
+            log.debug("Content: version not resolved");
+            return null;
+        }
+        Gav resolvedGav = resolved.gav;
+        String baseVersion = resolved.baseVersion;
 
         Response response = null;
 
         if (repository.getType().getValue().equals(HostedType.NAME)) {
-            response =  getContentLocaly(repository, groupId, artifactId, resolvedVersion, classifier, extension, packaging);
+            response =  getContentLocaly(repository, resolvedGav, request, httpHeaders);
         } else if ( repository.getType().getValue().equals(GroupType.NAME)) {
-            GroupFacet groupFacet = repository.facet(GroupFacet.class);
-            List<Repository> repositories = groupFacet.leafMembers();
-            for (Repository nextRepository : repositories) {
-                if (nextRepository.getType().getValue().equals(HostedType.NAME) ||
-                        nextRepository.getType().getValue().equals(ProxyType.NAME)) {
-                    response =  getContentLocaly(nextRepository, groupId, artifactId, resolvedVersion, classifier, extension, packaging);
-                    if ( response != null) {
-                        break;
-                    }
-                }
-            }
-            if( response == null){
-                response  = getContentRemote(repository, groupId, artifactId, baseVersion, resolvedVersion, classifier, extension, packaging);
+            if (groupSingleQuery) {
+                response = getContentLocaly(repository, storageMembers(repository), resolvedGav, request, httpHeaders);
+            } else {
+                response = groupMemberLookup.findFirst(storageMembers(repository),
+                        member -> getContentLocaly(member, resolvedGav, request, httpHeaders),
+                        LocalServiceResource::closeEntity);
             }
         } else if ( repository.getType().getValue().equals(ProxyType.NAME )){
-            response =  getContentLocaly(repository, groupId, artifactId, resolvedVersion, classifier, extension, packaging);
-            if( response == null){
-                response  = getContentRemote(repository, groupId, artifactId, baseVersion, resolvedVersion, classifier, extension, packaging);
-            }
+            response =  getContentLocaly(repository, resolvedGav, request, httpHeaders);
         }
-
         if (response != null) {
+            metrics.outcome(Endpoint.CONTENT, repository, Outcome.LOCAL);
             return response;
         }
-        return NOT_FOUND;
+
+        if (repository.getType().getValue().equals(GroupType.NAME) || repository.getType().getValue().equals(ProxyType.NAME)) {
+            response  = getContentRemote(repository, resolvedGav, baseVersion, httpHeaders);
+            if (response != null) {
+                metrics.outcome(Endpoint.CONTENT, repository, Outcome.REMOTE);
+            }
+        }
+        return response;
+    }
+
+
+    /**
+     * Weak etag of a resolution: same version, sha1 and path give the same tag, whatever the media type.
+     */
+    static EntityTag resolutionTag(ArtifactResolution artifact) {
+        Data data = artifact.data;
+        String hash = Hashing.sha1().newHasher()
+                .putString(String.valueOf(data.version), StandardCharsets.UTF_8).putChar('|')
+                .putString(String.valueOf(data.sha1), StandardCharsets.UTF_8).putChar('|')
+                .putString(String.valueOf(data.repositoryPath), StandardCharsets.UTF_8).putChar('|')
+                .putString(String.valueOf(data.presentLocally), StandardCharsets.UTF_8)
+                .hash().toString();
+        return new EntityTag(hash, true);
+    }
+
+    /**
+     * Weak etag of all the assets of a version, see {@link #resolutionTag}.
+     */
+    static EntityTag assetsTag(ArtifactAssets assets) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Data data : assets.data) {
+            hasher.putString(String.valueOf(data.version), StandardCharsets.UTF_8).putChar('|')
+                    .putString(String.valueOf(data.sha1), StandardCharsets.UTF_8).putChar('|')
+                    .putString(String.valueOf(data.repositoryPath), StandardCharsets.UTF_8).putChar(';');
+        }
+        return new EntityTag(hasher.hash().toString(), true);
+    }
+
+    /**
+     * Cache-Control of a resolve response: LATEST and RELEASE can change at any deploy, a base snapshot version at
+     * any snapshot deploy, other versions (releases and timestamped snapshots) do not change. Shared caches do not
+     * store responses to authenticated requests unless marked public.
+     */
+    CacheControl resolveCacheControl(String requestedVersion) {
+        int maxAge;
+        if (requestedVersion.equals("LATEST") || requestedVersion.equals("RELEASE")) {
+            maxAge = resolveMaxAgeLatest;
+        } else if (requestedVersion.endsWith(SNAPSHOT_VERSION_SUFFIX)) {
+            maxAge = resolveMaxAgeSnapshot;
+        } else {
+            maxAge = resolveMaxAgeFixed;
+        }
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(maxAge);
+        cacheControl.setNoTransform(false);
+        if (resolvePublic) {
+            cacheControl.getCacheExtension().put("public", null);
+            cacheControl.setSMaxAge(maxAge);
+        } else {
+            cacheControl.setPrivate(true);
+        }
+        return cacheControl;
+    }
+
+    /**
+     * Look up the artifact in storage: in the repository itself, or in the members of a group.
+     */
+    ArtifactResolution findArtifactLocal(Repository repository, Gav gav) {
+        ArtifactResolution artifact = null;
+
+        if (repository.getType().getValue().equals(HostedType.NAME) || repository.getType().getValue().equals(ProxyType.NAME)) {
+            artifact = searchAssetLocal(repository, gav);
+        } else if ( repository.getType().getValue().equals(GroupType.NAME)){
+            if (groupSingleQuery) {
+                artifact = searchAssetLocal(repository, storageMembers(repository), gav);
+            } else {
+                artifact = groupMemberLookup.findFirst(storageMembers(repository),
+                        member -> searchAssetLocal(member, gav), null);
+            }
+        }
+        return artifact;
+    }
+
+    /**
+     * Artifact not in storage: search index for groups, then what the metadata tells for groups and proxies.
+     */
+    ArtifactResolution findArtifactNotLocal(Repository repository, Gav gav, String baseVersion) {
+        ArtifactResolution artifact = null;
+
+        if ( repository.getType().getValue().equals(GroupType.NAME)){
+            artifact = searchAssetRemote(repository, gav);
+            if( artifact == null) {
+                artifact = makeArtifactFromMetaData(gav, baseVersion, readSnapshotMetaData(repository, gav, baseVersion));
+            }
+        } else if ( repository.getType().getValue().equals(ProxyType.NAME )){
+            artifact = makeArtifactFromMetaData(gav, baseVersion, readSnapshotMetaData(repository, gav, baseVersion));
+        }
+        return artifact;
+    }
+
+    /**
+     * Resolve LATEST, RELEASE or a snapshot base version: from the version index when it covers the repository, else
+     * from maven-metadata.xml.
+     */
+    String resolveLatestVersion(Repository repository, Gav gav) throws IOException, XmlPullParserException {
+        if (versionIndex.covers(repository)) {
+            return versionIndex.latest(repository, gav.getGroupId(), gav.getArtifactId());
+        }
+        return resolvedVersionCache.get(repository, gav.getGroupId(), gav.getArtifactId(), "LATEST", () -> {
+            Metadata componentMetaData = readMetadata(repository, metaDataHelper.metadataPath(gav, null), MetadataExtractor.Field.LATEST);
+            return componentMetaData != null ? getLatestVersionFromMetaData(repository, componentMetaData) : null;
+        });
+    }
+
+    String resolveReleaseVersion(Repository repository, Gav gav) throws IOException, XmlPullParserException {
+        if (versionIndex.covers(repository)) {
+            return versionIndex.release(repository, gav.getGroupId(), gav.getArtifactId());
+        }
+        return resolvedVersionCache.get(repository, gav.getGroupId(), gav.getArtifactId(), "RELEASE", () -> {
+            Metadata componentMetaData = readMetadata(repository, metaDataHelper.metadataPath(gav, null), MetadataExtractor.Field.RELEASE);
+            return componentMetaData != null ? getReleaseVersionFromMetaData(repository, componentMetaData) : null;
+        });
+    }
+
+    String resolveSnapshotVersion(Repository repository, Gav gav, String baseVersion) throws IOException, XmlPullParserException {
+        if (versionIndex.covers(repository)) {
+            return versionIndex.snapshot(repository, gav.getGroupId(), gav.getArtifactId(), baseVersion);
+        }
+        return resolvedVersionCache.get(repository, gav.getGroupId(), gav.getArtifactId(), baseVersion, () -> {
+            Metadata versionMetaData = readMetadata(repository, metaDataHelper.metadataPath(gav, baseVersion), MetadataExtractor.Field.SNAPSHOT);
+            return versionMetaData != null ? getSnapshotVersionFromMetaData(repository, versionMetaData, baseVersion) : null;
+        });
+    }
+
+    /**
+     * Version level metadata of a snapshot base version, null if not a snapshot or not readable.
+     */
+    Metadata readSnapshotMetaData(Repository repository, Gav gav, String baseVersion) {
+        if (baseVersion == null || !baseVersion.endsWith(SNAPSHOT_VERSION_SUFFIX)) {
+            return null;
+        }
+        try {
+            return readMetadata(repository, metaDataHelper.metadataPath(gav, baseVersion), null);
+        } catch (XmlPullParserException | IOException ex) {
+            log.debug("readSnapshotMetaData: could not get metadata: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    private Metadata readMetadata(Repository repository, MavenPath mavenPath, MetadataExtractor.Field field) throws IOException, XmlPullParserException {
+        Timer.Context timer = metrics.time(Stage.METADATA, repository);
+        try {
+            return metaDataHelper.read(repository, mavenPath, field);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Leaf members of the group that hold assets: hosted and proxy repositories, in group order.
+     */
+    List<Repository> storageMembers(Repository repository) {
+        GroupFacet groupFacet = repository.facet(GroupFacet.class);
+        List<Repository> repositories = new ArrayList<>();
+        for (Repository nextRepository : groupFacet.leafMembers()) {
+            if (nextRepository.getType().getValue().equals(HostedType.NAME) ||
+                    nextRepository.getType().getValue().equals(ProxyType.NAME)) {
+                repositories.add(nextRepository);
+            }
+        }
+        return repositories;
     }
 
+    static void closeEntity(Response response) {
+        if (response.getEntity() instanceof Closeable) {
+            try {
+                ((Closeable) response.getEntity()).close();
+            } catch (IOException ex) {
+                // nothing more to do with it
+            }
+        }
+    }
 
     protected Integer getBuildNumberForMetadataMaven3Value(final String valueString) {
         try {
@@ -338,7 +983,6 @@ public class LocalServiceResource  extends ComponentSupport
 
     protected String getReleaseVersionFromMetaData(Repository repository, Metadata metaData) {
         String releaseVersion = null;
-        MavenFacet facet = repository.facet(MavenFacet.class);
 
         if (metaData != null && metaData.getVersioning() != null) {
             releaseVersion = metaData.getVersioning().getRelease();
@@ -363,7 +1007,6 @@ public class LocalServiceResource  extends ComponentSupport
     protected String getLatestVersionFromMetaData(Repository repository, Metadata metaData) {
 
         String latestVersion = null;
-        MavenFacet facet = repository.facet(MavenFacet.class);
 
         if (metaData != null && metaData.getVersioning() != null) {
             latestVersion = metaData.getVersioning().getLatest();
@@ -387,7 +1030,6 @@ public class LocalServiceResource  extends ComponentSupport
     protected String getSnapshotVersionFromMetaData(Repository repository, Metadata metaData, String baseVersion) {
 
         String snapshotVersion = null;
-        MavenFacet facet = repository.facet(MavenFacet.class);
 
         if (metaData != null && metaData.getVersioning() != null) {
 
@@ -406,184 +1048,132 @@ public class LocalServiceResource  extends ComponentSupport
         return snapshotVersion;
     }
 
-    public ArtifactResolution searchAssetLocal(Repository repository, String groupId, String artifactId, String classifier, String extension, String packaging, String resolvedVersion) {
+    public ArtifactResolution searchAssetLocal(Repository repository, Gav gav) {
+        return searchAssetLocal(repository, Collections.singletonList(repository), gav);
+    }
 
-        StorageFacet facet = repository.facet(StorageFacet.class);
+    /**
+     * Search the asset in all the given repositories with one query, run in the storage of txRepository (the
+     * repository itself, or the group they are members of). If several repositories have it, the first one in the
+     * list wins.
+     */
+    public ArtifactResolution searchAssetLocal(Repository txRepository, List<Repository> repositories, Gav gav) {
+
+        StorageFacet facet = txRepository.facet(StorageFacet.class);
         Supplier<StorageTx> storageTxSupplier = facet.txSupplier();
 
-        List<Asset> allAssets = new ArrayList<Asset>();
-        List<Repository> repositories = new ArrayList();
-        repositories.add(repository);
+        Asset asset = null;
 
+        Timer.Context timer = metrics.time(Stage.DATABASE, txRepository);
         final StorageTx tx2 = storageTxSupplier.get();
         try {
             tx2.begin();
-            Query.Builder qb = Query.builder().where("component.group").eq(groupId)
-                    .and("component.name").eq(artifactId)
-                    .and("component.attributes.maven2.version").eq(resolvedVersion);
-            if (!isBlank(classifier)) {
-                qb = qb.and("attributes.maven2.classifier").eq(classifier);
-            }
-            if (!isBlank(extension)) {
-                qb = qb.and("attributes.maven2.extension").eq(extension);
-            }
-            if (!isBlank(packaging)) {
-                qb = qb.and("attributes.maven2.packaging").eq(packaging);
-            }
-
-            Query q = qb.suffix("order by last_updated desc").build();
-
-            log.debug("Resolve query: where {} {} parsm: {}", q.getWhere(), q.getQuerySuffix(), q.getParameters());
-            Iterable<Asset> assets = tx2.findAssets(q, repositories);
-            assets.forEach(it -> {
-                allAssets.add(it);
-            });
+            asset = findAsset(tx2, repositories, gav);
         } finally {
             tx2.close();
+            timer.stop();
         }
 
-        if (allAssets.size() > 0) {
-            Asset asset = allAssets.get(0);
-            DetachingMap mavenProps = (DetachingMap) asset.attributes().get("maven2");
-            if (mavenProps != null) {
-
-                ArtifactResolution artifactResolution = new ArtifactResolution();
-                artifactResolution.data = new Data();
-                artifactResolution.data.presentLocally = "true";
-                artifactResolution.data.groupId = (String) mavenProps.get(Attributes.P_GROUP_ID);
-                artifactResolution.data.artifactId = (String) mavenProps.get(Attributes.P_ARTIFACT_ID);
-                artifactResolution.data.version = (String) mavenProps.get(Attributes.P_VERSION);
-                artifactResolution.data.extension = (String) mavenProps.get(Attributes.P_EXTENSION);
-                artifactResolution.data.classifier = (String) mavenProps.get(Attributes.P_CLASSIFIER);
-
-                String baseVersion = (String) mavenProps.get(Attributes.P_BASE_VERSION);
-                boolean isSnapshot = baseVersion != null && baseVersion.endsWith(SNAPSHOT_VERSION_SUFFIX);
-                if (isSnapshot) {
-                    artifactResolution.data.baseVersion = baseVersion;
-
-                    Integer buildNumber = getBuildNumberForMetadataMaven3Value(artifactResolution.data.version);
-                    if (buildNumber != null) {
-
-                        Map<String, Object> content = (Map<String, Object>) allAssets.get(0).attributes().get("content");
-                        Date snapshotTimeStamp = (Date) content.get("last_modified");
-                        if (snapshotTimeStamp != null) {
-                            artifactResolution.data.snapshotTimeStamp = Long.toString(snapshotTimeStamp.getTime());
-                        }
-                        artifactResolution.data.snapshotBuildNumber = buildNumber.toString();
+        return asset != null ? toArtifactResolution(asset) : null;
+    }
+
+    /**
+     * Resolution of an asset present in storage.
+     */
+    ArtifactResolution toArtifactResolution(Asset asset) {
+        DetachingMap mavenProps = (DetachingMap) asset.attributes().get("maven2");
+        if (mavenProps != null) {
+
+            ArtifactResolution artifactResolution = new ArtifactResolution();
+            artifactResolution.data = new Data();
+            artifactResolution.data.presentLocally = "true";
+            artifactResolution.data.groupId = (String) mavenProps.get(Attributes.P_GROUP_ID);
+            artifactResolution.data.artifactId = (String) mavenProps.get(Attributes.P_ARTIFACT_ID);
+            artifactResolution.data.version = (String) mavenProps.get(Attributes.P_VERSION);
+            artifactResolution.data.extension = (String) mavenProps.get(Attributes.P_EXTENSION);
+            artifactResolution.data.classifier = (String) mavenProps.get(Attributes.P_CLASSIFIER);
+
+            String baseVersion = (String) mavenProps.get(Attributes.P_BASE_VERSION);
+            boolean isSnapshot = baseVersion != null && baseVersion.endsWith(SNAPSHOT_VERSION_SUFFIX);
+            if (isSnapshot) {
+                artifactResolution.data.baseVersion = baseVersion;
+
+                Integer buildNumber = getBuildNumberForMetadataMaven3Value(artifactResolution.data.version);
+                if (buildNumber != null) {
+
+                    Map<String, Object> content = (Map<String, Object>) asset.attributes().get("content");
+                    Date snapshotTimeStamp = (Date) content.get("last_modified");
+                    if (snapshotTimeStamp != null) {
+                        artifactResolution.data.snapshotTimeStamp = Long.toString(snapshotTimeStamp.getTime());
                     }
+                    artifactResolution.data.snapshotBuildNumber = buildNumber.toString();
                 }
+            }
 
-                artifactResolution.data.snapshot = isSnapshot ? "true" : "false";
+            artifactResolution.data.snapshot = isSnapshot ? "true" : "false";
 
-                Map<String, Object> checksum = (Map<String, Object>) allAssets.get(0).attributes().get("checksum");
-                artifactResolution.data.sha1 = (String) checksum.get("sha1");
-                artifactResolution.data.repositoryPath = asset.name();
+            Map<String, Object> checksum = (Map<String, Object>) asset.attributes().get("checksum");
+            artifactResolution.data.sha1 = (String) checksum.get("sha1");
+            artifactResolution.data.repositoryPath = asset.name();
 
-                return artifactResolution;
-            }
+            return artifactResolution;
         }
 
         return null;
     }
 
-    public ArtifactResolution searchAssetRemote(Repository repository, String groupId, String artifactId, String classifier, String extension, String packaging, String version) {
-
-        ArtifactResolution artifactResolution = null;
-
-        BoolQueryBuilder query = boolQuery();
-        query.filter(termQuery("format", "maven2"));
-
-        //if (!isBlank(repository)) {
-        //    query.filter(termQuery("repository_name", repository));
-        //}
-        //if (!isBlank(groupId)) {
-        query.filter(termQuery("attributes.maven2.groupId", groupId));
-        //}
-        //if (!isBlank(artifactId)) {
-        query.filter(termQuery("attributes.maven2.artifactId", artifactId));
-        //}
-        if (!isBlank(classifier)) {
-            query.filter(termQuery("assets.attributes.maven2.classifier", classifier));
-        }
-        if (!isBlank(extension)) {
-            query.filter(termQuery("assets.attributes.maven2.extension", extension));
-        }
-        if (!isBlank(packaging)) {
-            query.filter(termQuery("assets.attributes.maven2.packaging", packaging));
-        }
-        //if( !isBlank(version)) {
-        query.filter(termQuery("assets.attributes.maven2.version", version));
-        //}
-
-        SearchResponse result = searchService.search(query, null, 0, 10);
-
-        SearchHit[] hits = result.getHits().hits();
-        if (hits.length > 0) {
-            SearchHit hit = hits[0];
-            List<Map<String, Object>> assets = (List<Map<String, Object>>) hit.getSource().get("assets");
-            //Map<String, Object> attributes = (Map<String, Object>) assets.get(0).get("attributes");
-            //Map<String, Object> content = (Map<String, Object>) attributes.get("content");
-
-            for (Map<String, Object> asset : assets) {
-                Map<String, Object> attributes = (Map<String, Object>) asset.get("attributes");
-                Map<String, Object> maven2 = (Map<String, Object>) attributes.get("maven2");
-                Map<String, Object> content = (Map<String, Object>) attributes.get("content");
-                Map<String, Object> checksum = (Map<String, Object>) attributes.get("checksum");
-
-                if (maven2.get("extension").equals(extension)
-                        && (isBlank(classifier) ? maven2.get("classifier") == null : maven2.get("classifier").equals(classifier))) {
-
-                    artifactResolution = new ArtifactResolution();
-                    artifactResolution.data = new Data();
-                    artifactResolution.data.presentLocally = "false";
-                    artifactResolution.data.groupId = groupId;
-                    artifactResolution.data.artifactId = artifactId;
-                    artifactResolution.data.version = version;
-                    artifactResolution.data.extension = extension;
-                    if (maven2.get("classifier") != null) {
-                        artifactResolution.data.classifier = (String) maven2.get("classifier");
-                    }
-                    String baseVersion = (String) maven2.get("baseVersion");
-                    boolean isSnapshot = baseVersion != null && baseVersion.endsWith(SNAPSHOT_VERSION_SUFFIX);
-                    if (isSnapshot) {
-                        artifactResolution.data.baseVersion = baseVersion;
-
-                        Integer buildNumber = getBuildNumberForMetadataMaven3Value(artifactResolution.data.version);
-                        if (buildNumber != null) {
-
-                            Long snapshotTimeStamp = (Long) content.get("last_modified");
-                            if (snapshotTimeStamp != null) {
-                                artifactResolution.data.snapshotTimeStamp = Long.toString(snapshotTimeStamp);
-                            }
-                            artifactResolution.data.snapshotBuildNumber = buildNumber.toString();
-                        }
-                    }
-                    artifactResolution.data.snapshot = isSnapshot ? "true" : "false";
+    public ArtifactResolution searchAssetRemote(Repository repository, Gav gav) {
 
+        ArtifactSearch.IndexedAsset asset;
+        Timer.Context timer = metrics.time(Stage.SEARCH, repository);
+        try {
+            asset = artifactSearch.find(repository, gav);
+        } finally {
+            timer.stop();
+        }
+        if (asset == null) {
+            return null;
+        }
+
+        ArtifactResolution artifactResolution = new ArtifactResolution();
+        artifactResolution.data = new Data();
+        artifactResolution.data.presentLocally = "false";
+        artifactResolution.data.groupId = gav.getGroupId();
+        artifactResolution.data.artifactId = gav.getArtifactId();
+        artifactResolution.data.version = gav.getVersion();
+        artifactResolution.data.extension = gav.getExtension();
+        artifactResolution.data.classifier = asset.classifier;
+        boolean isSnapshot = asset.baseVersion != null && asset.baseVersion.endsWith(SNAPSHOT_VERSION_SUFFIX);
+        if (isSnapshot) {
+            artifactResolution.data.baseVersion = asset.baseVersion;
 
-                    artifactResolution.data.sha1 = (String) checksum.get("sha1");
-                    artifactResolution.data.repositoryPath = (String) asset.get("name");
-                    break;
+            Integer buildNumber = getBuildNumberForMetadataMaven3Value(artifactResolution.data.version);
+            if (buildNumber != null) {
+                if (asset.lastModified != null) {
+                    artifactResolution.data.snapshotTimeStamp = Long.toString(asset.lastModified);
                 }
+                artifactResolution.data.snapshotBuildNumber = buildNumber.toString();
             }
-
         }
+        artifactResolution.data.snapshot = isSnapshot ? "true" : "false";
 
+        artifactResolution.data.sha1 = asset.sha1;
+        artifactResolution.data.repositoryPath = asset.name;
 
         return artifactResolution;
     }
 
-    public ArtifactResolution makeArtifactFromMetaData( String groupId, String artifactId, String classifier, String extension, String version, String baseVersion, Metadata metadata) {
+    public ArtifactResolution makeArtifactFromMetaData(Gav gav, String baseVersion, Metadata metadata) {
 
         ArtifactResolution artifactResolution = new ArtifactResolution();
 
         artifactResolution.data = new Data();
         artifactResolution.data.presentLocally = "false";
-        artifactResolution.data.groupId = groupId;
-        artifactResolution.data.artifactId = artifactId;
-        artifactResolution.data.version = version;
-        artifactResolution.data.extension = extension;
-        artifactResolution.data.classifier = classifier;
+        artifactResolution.data.groupId = gav.getGroupId();
+        artifactResolution.data.artifactId = gav.getArtifactId();
+        artifactResolution.data.version = gav.getVersion();
+        artifactResolution.data.extension = gav.getExtension();
+        artifactResolution.data.classifier = gav.getClassifier();
 
         boolean isSnapshot = baseVersion != null && baseVersion.endsWith(SNAPSHOT_VERSION_SUFFIX);
         if (isSnapshot) {
@@ -600,117 +1190,199 @@ public class LocalServiceResource  extends ComponentSupport
         }
         artifactResolution.data.snapshot = isSnapshot ? "true" : "false";
 
-        artifactResolution.data.repositoryPath = PathUtils.calculatePath(groupId, artifactId, baseVersion, version, classifier, extension);
+        artifactResolution.data.repositoryPath = gav.artifactPath(baseVersion);
 
         return artifactResolution;
     }
 
 
-    Response getContentRemote(Repository repository, String groupId, String artifactId, String baseVersion, String resolvedVersion, String classifier, String extension, String packaging){
-        Response response = null;
-
-        String url = repository.getUrl();
-        String applicationPort = System.getProperty("application-port");
-
-        String artifactPath = PathUtils.calculatePath( groupId, artifactId, baseVersion, resolvedVersion, classifier, extension);
+    /**
+     * Headers of the client request forwarded to the repository view, and of the view response sent back.
+     */
+    private static final String[] FORWARDED_REQUEST_HEADERS = {HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE,
+            ContentResponseHelper.RANGE, ContentResponseHelper.IF_RANGE};
+    private static final String[] FORWARDED_RESPONSE_HEADERS = {HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED,
+            ContentResponseHelper.CONTENT_RANGE, ContentResponseHelper.ACCEPT_RANGES};
 
-        HttpResponse httpClientResponse = null;
+    /**
+     * Get the content through the view of the repository, in process: a proxy fetches it upstream and caches it,
+     * a group asks its members, as for a request to the repository url.
+     */
+    Response getContentRemote(Repository repository, Gav gav, String baseVersion, HttpHeaders httpHeaders){
+        String artifactPath = gav.artifactPath(baseVersion);
+        log.debug("getContentRemote : dispatching {} to the view of {}", artifactPath, repository.getName());
+
+        org.sonatype.nexus.repository.view.Request.Builder requestBuilder = new org.sonatype.nexus.repository.view.Request.Builder()
+                .action(HttpMethods.GET)
+                .path(artifactPath);
+        for (String name : FORWARDED_REQUEST_HEADERS) {
+            String value = httpHeaders != null ? httpHeaders.getHeaderString(name) : null;
+            if (value != null) {
+                requestBuilder.header(name, value);
+            }
+        }
 
+        org.sonatype.nexus.repository.view.Response viewResponse;
+        Timer.Context timer = metrics.time(Stage.VIEW, repository);
         try {
-            URL repoUrl = new URL(url);
-            URL localRepoUrl = new URL("http", "localhost", Integer.parseInt(applicationPort), repoUrl.getFile());
-
-            HttpClient client = HttpClients.custom().build();
-            log.debug("getContentRemote : loading content at {}", localRepoUrl );
-            HttpUriRequest request = RequestBuilder.get()
-                    .setUri(localRepoUrl + "/" +artifactPath)
-                    .build();
-
-            httpClientResponse = client.execute(request);
-            int status = httpClientResponse.getStatusLine().getStatusCode();
-            if (status >= 200 && status < 300) {
-                HttpEntity entity = httpClientResponse.getEntity();
-                InputStream instream = entity.getContent();
-
-                Header[] headers = httpClientResponse.getAllHeaders();
-
-                Response.ResponseBuilder responseBuilder = Response.ok(instream);
+            viewResponse = repository.facet(ViewFacet.class).dispatch(requestBuilder.build());
+        } catch (Exception ex) {
+            log.debug("getContentRemote : error dispatching {} to {}, ex: {}", artifactPath, repository.getName(), ex.toString());
+            return null;
+        } finally {
+            timer.stop();
+        }
 
-                for( Header header : headers){
-                    if( header.getName().equals("Content-Type")) {
-                        responseBuilder.header(header.getName(), header.getValue());
-                        break;
-                    }
+        int status = viewResponse.getStatus().getCode();
+        Payload payload = viewResponse.getPayload();
+        if (status >= 200 && status < 300 && payload != null) {
+            try {
+                // the payload stream is written straight to the client, and closed once written
+                Response.ResponseBuilder responseBuilder = Response.status(status)
+                        .entity(new ContentStreamingOutput(payload.openInputStream()));
+                forwardHeaders(viewResponse, responseBuilder);
+                if (payload.getContentType() != null) {
+                    responseBuilder.header(HttpHeaders.CONTENT_TYPE, payload.getContentType());
+                }
+                if (payload.getSize() >= 0) {
+                    responseBuilder.header(HttpHeaders.CONTENT_LENGTH, payload.getSize());
                 }
                 responseBuilder.header("Content-Disposition", "attachment;filename=\"" + artifactPath + "\"");
-                response = responseBuilder.build();
-            } else {
-                EntityUtils.consume(httpClientResponse.getEntity());
+                return responseBuilder.build();
+            } catch (IOException ex) {
+                log.debug("getContentRemote : error opening content of {} in {}, ex: {}", artifactPath, repository.getName(), ex.toString());
+                return null;
             }
+        }
+        if (status == 304 || status == 416) {
+            Response.ResponseBuilder responseBuilder = Response.status(status);
+            forwardHeaders(viewResponse, responseBuilder);
+            return responseBuilder.build();
+        }
+        log.debug("getContentRemote : {} not found in {}, status {}", artifactPath, repository.getName(), status);
+        return null;
+    }
 
-        } catch (IOException  ex ){
-            log.debug("getContentRemote : error loading content at {}, ex: {}", url, ex.getLocalizedMessage() );
-            if( httpClientResponse!= null){
-                try {
-                    EntityUtils.consume(httpClientResponse.getEntity());
-                } catch (IOException excp) {}
+    private static void forwardHeaders(org.sonatype.nexus.repository.view.Response viewResponse, Response.ResponseBuilder responseBuilder) {
+        for (String name : FORWARDED_RESPONSE_HEADERS) {
+            String value = viewResponse.getHeaders().get(name);
+            if (value != null) {
+                responseBuilder.header(name, value);
             }
         }
-        return response;
     }
 
-    Response getContentLocaly(Repository repository, String groupId, String artifactId, String resolvedVersion, String classifier, String extension, String packaging){
-        StorageFacet facet = repository.facet(StorageFacet.class);
-        Supplier<StorageTx> storageTxSupplier = facet.txSupplier();
-
-        List<Asset> allAssets = new ArrayList<Asset>();
-        List<Repository> repositories = new ArrayList();
-        repositories.add(repository);
+    Response getContentLocaly(Repository repository, Gav gav, Request request, HttpHeaders httpHeaders){
+        return getContentLocaly(repository, Collections.singletonList(repository), gav, request, httpHeaders);
+    }
 
-        Response response = null;
+    /**
+     * Same as {@link #searchAssetLocal(Repository, List, Gav)}, for content.
+     * Conditional requests matching the asset etag (sha1) or last modified date get a 304 without the blob being
+     * opened; a Range request gets the requested part only. The blob is opened through the storage of the repository
+     * owning the asset: members of a group may be on different blob stores.
+     */
+    Response getContentLocaly(Repository txRepository, List<Repository> repositories, Gav gav, Request request, HttpHeaders httpHeaders){
+        StorageFacet facet = txRepository.facet(StorageFacet.class);
+        Supplier<StorageTx> storageTxSupplier = facet.txSupplier();
 
+        OwnedAsset found;
         final StorageTx tx = storageTxSupplier.get();
         try {
             tx.begin();
-            Query.Builder qb = Query.builder().where("component.group").eq(groupId)
-                    .and("component.name").eq(artifactId)
-                    .and("component.attributes.maven2.version").eq(resolvedVersion);
-            if (!isBlank(classifier)) {
-                qb = qb.and("attributes.maven2.classifier").eq(classifier);
-            }
-            if (!isBlank(extension)) {
-                qb = qb.and("attributes.maven2.extension").eq(extension);
-            }
-            if (!isBlank(packaging)) {
-                qb = qb.and("attributes.maven2.packaging").eq(packaging);
-            }
-
-            Query q = qb.suffix("order by last_updated desc").build();
-
-            log.debug("Content query: where {} {} parsm: {}", q.getWhere(), q.getQuerySuffix(), q.getParameters());
-            Iterable<Asset> assets = tx.findAssets(q, repositories);
-            assets.forEach(it -> {
-                allAssets.add(it);
-            });
-
-            if (allAssets.size() > 0) {
-                Asset asset = allAssets.get(0);
-                asset.markAsDownloaded();
-                tx.saveAsset(asset);
-                Blob blob = tx.requireBlob(asset.requireBlobRef());
-                String filename = asset.name().substring(asset.name().lastIndexOf("/") + 1);
-                Response.ResponseBuilder responseBuilder = Response.ok(blob.getInputStream());
-                responseBuilder.header("Content-Type", blob.getHeaders().get("BlobStore.content-type"));
-                responseBuilder.header("Content-Disposition", "attachment;filename=\"" + filename + "\"");
-                if (tx.isActive()) {
-                    tx.commit();
-                }
-                response = responseBuilder.build();
+            Timer.Context timer = metrics.time(Stage.DATABASE, txRepository);
+            try {
+                found = findOwnedAsset(tx, repositories, gav);
+            } finally {
+                timer.stop();
             }
         } finally {
             tx.close();
         }
+        if (found == null) {
+            return null;
+        }
 
-        return response;
+        Asset asset = found.asset;
+        EntityTag etag = ContentResponseHelper.etag(asset);
+        Date lastModified = ContentResponseHelper.lastModified(asset);
+        Response.ResponseBuilder notModified = ContentResponseHelper.evaluatePreconditions(request, lastModified, etag);
+        if (notModified != null) {
+            log.debug("Content: {} not modified", asset.name());
+            return notModified.build();
+        }
+
+        final StorageTx ownerTx = found.repository.facet(StorageFacet.class).txSupplier().get();
+        try {
+            ownerTx.begin();
+            Blob blob = ownerTx.requireBlob(asset.requireBlobRef());
+            String filename = asset.name().substring(asset.name().lastIndexOf("/") + 1);
+            Response.ResponseBuilder responseBuilder = ContentResponseHelper.content(blob.getInputStream(), asset.size(), httpHeaders, lastModified, etag);
+            responseBuilder.header("Content-Type", blob.getHeaders().get("BlobStore.content-type"));
+            responseBuilder.header("Content-Disposition", "attachment;filename=\"" + filename + "\"");
+            // read only transaction: last downloaded date is written later, in batch
+            lastDownloadedRecorder.record(found.repository, Collections.singletonList(found.repository), asset);
+            return responseBuilder.build();
+        } catch (IOException ex) {
+            log.debug("Content: error reading content, ex: {}", ex.getMessage());
+            return null;
+        } finally {
+            ownerTx.close();
+        }
+    }
+
+    /**
+     * An asset and the repository it belongs to.
+     */
+    private static final class OwnedAsset {
+        private final Asset asset;
+        private final Repository repository;
+
+        OwnedAsset(Asset asset, Repository repository) {
+            this.asset = asset;
+            this.repository = repository;
+        }
+    }
+
+    Asset findAsset(StorageTx tx, List<Repository> repositories, Gav gav) {
+        OwnedAsset found = findOwnedAsset(tx, repositories, gav);
+        return found != null ? found.asset : null;
+    }
+
+    /**
+     * Query the asset in all repositories at once. Assets come most recently updated first; among them the one
+     * from the repository coming first in the list is kept.
+     */
+    private OwnedAsset findOwnedAsset(StorageTx tx, List<Repository> repositories, Gav gav) {
+        if (repositories.isEmpty()) {
+            return null;
+        }
+
+        Query.Builder qb = Query.builder().where("component.group").eq(gav.getGroupId())
+                .and("component.name").eq(gav.getArtifactId())
+                .and("component.attributes.maven2.version").eq(gav.getVersion());
+        if (gav.getClassifier() != null) {
+            qb = qb.and("attributes.maven2.classifier").eq(gav.getClassifier());
+        }
+        if (gav.getExtension() != null) {
+            qb = qb.and("attributes.maven2.extension").eq(gav.getExtension());
+        }
+        if (gav.getPackaging() != null) {
+            qb = qb.and("attributes.maven2.packaging").eq(gav.getPackaging());
+        }
+
+        Query q = qb.suffix("order by last_updated desc").build();
+
+        log.debug("Asset query: where {} {} parsm: {} in {} repositories", q.getWhere(), q.getQuerySuffix(), q.getParameters(), repositories.size());
+        Iterator<Asset> assets = tx.findAssets(q, repositories).iterator();
+        if (!assets.hasNext()) {
+            return null;
+        }
+        if (repositories.size() == 1) {
+            return new OwnedAsset(assets.next(), repositories.get(0));
+        }
+        Map<EntityId, Integer> ranks = AssetBatch.bucketRanks(tx, repositories);
+        Asset asset = AssetBatch.first(assets, ranks, candidate -> true);
+        return asset != null ? new OwnedAsset(asset, repositories.get(ranks.get(asset.bucketId()))) : null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.repository.Repository;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Shared http client used to call back into this Nexus instance (localhost:${application-port}) when content or
+ * metadata has to go through the normal repository view (proxy fetch, group aggregation).
+ *
+ * One bounded keep-alive connection pool is shared by all requests and closed when the bundle stops.
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class LoopbackHttpClient extends StateGuardLifecycleSupport {
+
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int poolTimeout;
+    private final int idleTimeout;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+
+    @Inject
+    public LoopbackHttpClient(@Named("${nexus.localservice.loopback.maxConnections:-50}") final int maxConnections,
+                              @Named("${nexus.localservice.loopback.connectTimeoutMillis:-2000}") final int connectTimeout,
+                              @Named("${nexus.localservice.loopback.socketTimeoutMillis:-60000}") final int socketTimeout,
+                              @Named("${nexus.localservice.loopback.poolTimeoutMillis:-5000}") final int poolTimeout,
+                              @Named("${nexus.localservice.loopback.idleTimeoutSeconds:-30}") final int idleTimeout) {
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.poolTimeout = poolTimeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        // all requests go to the same route: localhost
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(poolTimeout)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.SECONDS)
+                .build();
+
+        log.info("LoopbackHttpClient : started with max connections: {}, connect timeout: {} ms, socket timeout: {} ms, pool timeout: {} ms",
+                maxConnections, connectTimeout, socketTimeout, poolTimeout);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        log.info("LoopbackHttpClient : stopping, pool usage: {}", getPoolStats());
+        client.close();
+        client = null;
+        connectionManager = null;
+    }
+
+    /**
+     * Execute request on the shared pool. The caller must consume or close the response entity so that the
+     * connection goes back to the pool.
+     *
+     * @throws IOException also when the client is not started (bundle stopping or starting), as any failed call
+     */
+    public CloseableHttpResponse execute(final HttpUriRequest request) throws IOException {
+        CloseableHttpClient current = client;
+        if (current == null) {
+            throw new IOException("LoopbackHttpClient not started");
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("execute : {} pool usage: {}", request.getURI(), getPoolStats());
+        }
+        return current.execute(request);
+    }
+
+    /**
+     * Url of the given path on the repository, as seen from localhost.
+     */
+    public String localUrl(final Repository repository, final String path) throws MalformedURLException {
+        URL repoUrl = new URL(repository.getUrl());
+        URL localRepoUrl = new URL("http", "localhost", Integer.parseInt(System.getProperty("application-port")), repoUrl.getFile());
+        return localRepoUrl + (path.startsWith("/") ? path : "/" + path);
+    }
+
+    public PoolStats getPoolStats() {
+        PoolingHttpClientConnectionManager current = connectionManager;
+        return current != null ? current.getTotalStats() : new PoolStats(0, 0, 0, maxConnections);
+    }
+
+    public int getLeased() {
+        return getPoolStats().getLeased();
+    }
+
+    public int getPending() {
+        return getPoolStats().getPending();
+    }
+
+    public int getAvailable() {
+        return getPoolStats().getAvailable();
+    }
+
+    public int getMax() {
+        return getPoolStats().getMax();
+    }
+}
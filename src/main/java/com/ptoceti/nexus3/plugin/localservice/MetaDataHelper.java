@@ -1,22 +1,33 @@
 package com.ptoceti.nexus3.plugin.localservice;
 
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.apache.maven.artifact.repository.metadata.Metadata;
 import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
 import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.group.GroupFacet;
 import org.sonatype.nexus.repository.maven.MavenFacet;
 import org.sonatype.nexus.repository.maven.MavenPath;
+import org.sonatype.nexus.repository.storage.AssetCreatedEvent;
+import org.sonatype.nexus.repository.storage.AssetDeletedEvent;
+import org.sonatype.nexus.repository.storage.AssetEvent;
+import org.sonatype.nexus.repository.storage.AssetUpdatedEvent;
 import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.types.GroupType;
 import org.sonatype.nexus.repository.types.HostedType;
@@ -24,26 +35,232 @@ import org.sonatype.nexus.repository.types.ProxyType;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
 import java.io.IOException;
-import java.io.StringReader;
-import java.net.URL;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class MetaDataHelper extends ComponentSupport  {
+import static com.google.common.base.Preconditions.checkNotNull;
+
+@Named
+@Singleton
+public class MetaDataHelper extends ComponentSupport implements EventAware {
+
+    public static final String METADATA_FILENAME = "maven-metadata.xml";
+
+    /**
+     * Metadata max age of a proxy without one configured, minutes.
+     */
+    private static final long DEFAULT_METADATA_MAX_AGE = 1440;
+
+    /**
+     * Generations of hosted metadata, bumped on each change; striped by key hash, so that a change of another
+     * metadata of the same stripe only costs a read not kept.
+     */
+    private static final int GENERATION_STRIPES = 1024;
+
+    /**
+     * Parsed metadata of hosted repositories, keyed by repository name and metadata path. Entries are weighted by
+     * their number of versions and dropped when the underlying asset is created, updated or deleted.
+     */
+    private final Cache<MetadataKey, Metadata> localCache;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /**
+     * Merged metadata of group repositories, valid as long as the checksums of the member metadata are unchanged.
+     */
+    private final Cache<MetadataKey, MergedMetadata> groupCache;
+
+    private final LoopbackHttpClient loopbackHttpClient;
+
+    private final RemoteMetadataGuard remoteMetadataGuard;
+
+    @Inject
+    public MetaDataHelper(final LoopbackHttpClient loopbackHttpClient, final RemoteMetadataGuard remoteMetadataGuard,
+                          @Named("${nexus.localservice.metadata.cache.maxWeight:-100000}") final long maxWeight,
+                          @Named("${nexus.localservice.metadata.cache.expireMinutes:-60}") final long expireMinutes) {
+        this.loopbackHttpClient = checkNotNull(loopbackHttpClient);
+        this.remoteMetadataGuard = checkNotNull(remoteMetadataGuard);
+        this.localCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((MetadataKey key, Metadata metadata) -> weight(metadata))
+                .expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+                .build();
+        this.groupCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((MetadataKey key, MergedMetadata merged) -> weight(merged.metadata))
+                .expireAfterAccess(expireMinutes, TimeUnit.MINUTES)
+                .build();
+        log.debug("MetaDataHelper : metadata cache max weight: {}, expire after: {} min", maxWeight, expireMinutes);
+    }
 
     public Metadata read(final Repository repository, final MavenPath mavenPath) throws IOException, XmlPullParserException {
+        return read(repository, mavenPath, null);
+    }
+
+    /**
+     * Read metadata for resolving one kind of version only. Hosted and group metadata are cached / merged in full,
+     * proxy metadata is only read up to the requested field (see {@link MetadataExtractor}).
+     *
+     * @param field field needed, null for the whole metadata
+     */
+    public Metadata read(final Repository repository, final MavenPath mavenPath, final MetadataExtractor.Field field) throws IOException, XmlPullParserException {
         Metadata metadata = null;
 
         if (repository.getType().getValue().equals(HostedType.NAME)) {
-            metadata = readLocal(repository, mavenPath);
+            MetadataKey key = new MetadataKey(repository.getName(), mavenPath.getPath());
+            metadata = localCache.getIfPresent(key);
+            if (metadata == null) {
+                int stripe = key.stripe();
+                long generation = generations.get(stripe);
+                metadata = readLocal(repository, mavenPath);
+                // metadata not there yet is not cached: no event would tell us when it shows up
+                if (metadata != null) {
+                    localCache.put(key, metadata);
+                    // checked after the put: a change from now on invalidates the entry
+                    if (generations.get(stripe) != generation) {
+                        log.debug("read : metadata {} from repository {} changed while read, not kept", mavenPath.getPath(), repository.getName());
+                        localCache.invalidate(key);
+                    }
+                }
+            } else {
+                log.debug("read : metadata {} from repository {} found in cache", mavenPath.getPath(), repository.getName());
+            }
+        } else if (repository.getType().getValue().equals(GroupType.NAME)) {
+            metadata = readGroup(repository, mavenPath);
         } else {
-            // alwayz try to get latest metadata, this way we get aggregation
-            metadata = readRemote(repository, mavenPath);
+            // alwayz try to get latest metadata, this way the proxy checks upstream
+            metadata = readRemote(repository, mavenPath, field);
         }
 
         return metadata;
     }
 
+    /**
+     * Read metadata of each leaf member of the group through its MavenFacet and merge them. The merge is reused
+     * as long as the member metadata checksums do not change. Proxy members that have no metadata cached yet, or
+     * whose cached metadata is older than their metadata max age, are read through the loopback so that the proxy
+     * checks upstream, as a request to the group view would; the merge is not reused then.
+     */
+    public Metadata readGroup(final Repository repository, final MavenPath mavenPath) throws IOException, XmlPullParserException {
+
+        List<Repository> members = repository.facet(GroupFacet.class).leafMembers();
+        List<Content> memberContents = new ArrayList<>();
+        List<Metadata> remoteMetadatas = new ArrayList<>();
+        StringBuilder fingerprint = new StringBuilder();
+        boolean memoizable = true;
+
+        for (Repository member : members) {
+            boolean isHosted = member.getType().getValue().equals(HostedType.NAME);
+            boolean isProxy = member.getType().getValue().equals(ProxyType.NAME);
+            if (!isHosted && !isProxy) {
+                continue;
+            }
+            Content content = getLocalContent(member, mavenPath);
+            if (content != null && isProxy && isStale(member, content)) {
+                log.debug("readGroup : metadata {} of proxy {} older than its max age", mavenPath.getPath(), member.getName());
+                memoizable = false;
+                Metadata remote = readRemote(member, mavenPath);
+                if (remote != null) {
+                    remoteMetadatas.add(remote);
+                    continue;
+                }
+                // upstream not reachable: merge the cached one
+            }
+            if (content != null) {
+                String sha1 = sha1(content);
+                if (sha1 == null) {
+                    memoizable = false;
+                }
+                memberContents.add(content);
+                fingerprint.append(member.getName()).append('=').append(sha1).append(';');
+            } else if (isProxy) {
+                Metadata remote = readRemote(member, mavenPath);
+                if (remote != null) {
+                    remoteMetadatas.add(remote);
+                    memoizable = false;
+                }
+            }
+        }
+
+        MetadataKey key = new MetadataKey(repository.getName(), mavenPath.getPath());
+        if (memoizable) {
+            MergedMetadata merged = groupCache.getIfPresent(key);
+            if (merged != null && merged.fingerprint.equals(fingerprint.toString())) {
+                log.debug("readGroup : members metadata {} of group {} unchanged", mavenPath.getPath(), repository.getName());
+                return merged.metadata;
+            }
+        }
+
+        List<Metadata> metadatas = new ArrayList<>();
+        MetadataXpp3Reader reader = new MetadataXpp3Reader();
+        for (Content content : memberContents) {
+            try (InputStream in = content.openInputStream()) {
+                metadatas.add(reader.read(in, false));
+            }
+        }
+        metadatas.addAll(remoteMetadatas);
+
+        Metadata metadata = MetadataMerger.merge(metadatas);
+        if (memoizable && metadata != null) {
+            groupCache.put(key, new MergedMetadata(fingerprint.toString(), metadata));
+        } else if (metadata == null) {
+            groupCache.invalidate(key);
+        }
+        return metadata;
+    }
+
+    private Content getLocalContent(final Repository repository, final MavenPath mavenPath) throws IOException {
+        StorageFacet storagefacet = repository.facet(StorageFacet.class);
+        UnitOfWork.begin(storagefacet.txSupplier());
+        try {
+            return repository.facet(MavenFacet.class).get(mavenPath);
+        } finally {
+            UnitOfWork.end();
+        }
+    }
+
+    /**
+     * True when metadata cached by a proxy is due for an upstream check: older than the proxy metadata max age, or
+     * invalidated.
+     */
+    private static boolean isStale(final Repository proxy, final Content content) {
+        CacheInfo cacheInfo = content.getAttributes().get(CacheInfo.class);
+        if (cacheInfo == null || cacheInfo.isInvalidated()) {
+            return true;
+        }
+        long maxAge = metadataMaxAgeMinutes(proxy);
+        return maxAge != Long.MAX_VALUE
+                && cacheInfo.getLastVerified().getMillis() + TimeUnit.MINUTES.toMillis(maxAge) < System.currentTimeMillis();
+    }
+
+    /**
+     * Metadata max age of a proxy, minutes; Long.MAX_VALUE when metadata is never checked again upstream.
+     */
+    static long metadataMaxAgeMinutes(final Repository proxy) {
+        Number maxAge = proxy.getConfiguration().attributes("proxy").get("metadataMaxAge", Number.class);
+        if (maxAge == null) {
+            return DEFAULT_METADATA_MAX_AGE;
+        }
+        // negative max age: metadata is never checked again upstream
+        return maxAge.longValue() < 0 ? Long.MAX_VALUE : maxAge.longValue();
+    }
+
+    private static String sha1(final Content content) {
+        Map<HashAlgorithm, HashCode> hashes = content.getAttributes().get(Content.CONTENT_HASH_CODES_MAP, Content.T_CONTENT_HASH_CODES_MAP);
+        if (hashes != null && hashes.get(HashAlgorithm.SHA1) != null) {
+            return hashes.get(HashAlgorithm.SHA1).toString();
+        }
+        return null;
+    }
+
     public Metadata readLocal(final Repository repository, final MavenPath mavenPath) throws IOException, XmlPullParserException {
 
         StorageFacet storagefacet = repository.facet(StorageFacet.class);
@@ -57,8 +274,9 @@ public class MetaDataHelper extends ComponentSupport  {
             } else {
                 log.debug("readLocal : loading metadata from repository: {}", repository.getName());
                 MetadataXpp3Reader reader = new MetadataXpp3Reader();
-                Metadata metadata = reader.read(content.openInputStream(), false);
-                return metadata;
+                try (InputStream in = content.openInputStream()) {
+                    return reader.read(in, false);
+                }
             }
         } finally {
                 UnitOfWork.end();
@@ -66,52 +284,95 @@ public class MetaDataHelper extends ComponentSupport  {
     }
 
     public Metadata readRemote( final Repository repository, final MavenPath mavenPath) {
+        return readRemote(repository, mavenPath, null);
+    }
 
+    /**
+     * Read through the loopback, within the deadline of the repository, see {@link RemoteMetadataGuard}.
+     *
+     * @param field field needed, null for the whole metadata
+     * @return the metadata, the last good one if the repository is slow or failing, null if none
+     */
+    public Metadata readRemote( final Repository repository, final MavenPath mavenPath, final MetadataExtractor.Field field) {
+        return remoteMetadataGuard.read(repository, mavenPath.getPath(), field, () -> fetchRemote(repository, mavenPath, field));
+    }
 
-        String metaDataRespnse = null;
-        String url = repository.getUrl();
-        String applicationPort = System.getProperty("application-port");
+    /**
+     * @return the metadata, null if the repository has none
+     * @throws IOException if the call fails or the repository answers with an error
+     */
+    private Metadata fetchRemote( final Repository repository, final MavenPath mavenPath, final MetadataExtractor.Field field) throws IOException, XmlPullParserException {
 
-        HttpResponse response = null;
+        CloseableHttpResponse response = null;
 
         try {
-            URL repoUrl = new URL(url);
-            URL localRepoUrl = new URL("http", "localhost", Integer.parseInt(applicationPort), repoUrl.getFile());
-            HttpClient client = HttpClients.custom().build();
-            log.debug("readRemote : loading metatada at {}", localRepoUrl);
+            String localUrl = loopbackHttpClient.localUrl(repository, mavenPath.getPath());
+            log.debug("fetchRemote : loading metatada at {}", localUrl);
             HttpUriRequest request = RequestBuilder.get()
-                    .setUri(localRepoUrl + "/" + mavenPath.getPath())
+                    .setUri(localUrl)
                     .setHeader(HttpHeaders.CONTENT_TYPE, "application/xml")
                     .build();
 
-            response = client.execute(request);
+            response = loopbackHttpClient.execute(request);
             int status = response.getStatusLine().getStatusCode();
             if (status >= 200 && status < 300) {
                 HttpEntity entity = response.getEntity();
                 if (entity != null) {
-                    metaDataRespnse = EntityUtils.toString(entity);
-                    MetadataXpp3Reader reader = new MetadataXpp3Reader();
-                    Metadata metadata = reader.read(new StringReader(metaDataRespnse), false);
-                    return metadata;
+                    if (field != null) {
+                        return extract(request, entity.getContent(), field);
+                    }
+                    // parse straight from the response
+                    try (InputStream in = entity.getContent()) {
+                        MetadataXpp3Reader reader = new MetadataXpp3Reader();
+                        return reader.read(in, false);
+                    }
                 }
-            } else {
-                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            EntityUtils.consume(response.getEntity());
+            if (status == 404) {
+                return null;
             }
+            throw new IOException("status " + status + " loading metadata at " + localUrl);
         } catch (IOException | XmlPullParserException ex) {
-            log.debug("readRemote : error loading metatada at {}, ex: {}", url + "/" + mavenPath.getPath(), ex.getMessage());
+            log.debug("fetchRemote : error loading metatada at {}, ex: {}", repository.getUrl() + "/" + mavenPath.getPath(), ex.getMessage());
             if( response!= null){
                 try {
                     EntityUtils.consume(response.getEntity());
                 } catch (IOException excp) {}
             }
+            throw ex;
         }
-        return null;
+    }
+
+    /**
+     * Extract the field, then release the connection: closing a stream not read to its end would drain the rest of
+     * the body, the request is aborted instead.
+     */
+    private static Metadata extract(final HttpUriRequest request, final InputStream in, final MetadataExtractor.Field field) throws IOException, XmlPullParserException {
+        boolean drained = false;
+        try {
+            Metadata metadata = MetadataExtractor.extract(in, field);
+            drained = in.read() < 0;
+            return metadata;
+        } finally {
+            if (drained) {
+                // read to its end: the connection goes back to the pool
+                in.close();
+            } else {
+                request.abort();
+            }
+        }
+    }
+
+    public MavenPath metadataPath(Gav gav, String baseVersion){
+        return new MavenPath(gav.metadataPath(baseVersion), null);
     }
 
     public MavenPath metadataPath(String groupId, String artifactId, String baseVersion){
 
         StringBuilder sb = new StringBuilder();
-        sb.append( groupId.replace('.', '/'));
+        sb.append( PathUtils.groupPath(groupId));
         if(StringUtils.isNotEmpty( artifactId)){
             sb.append('/');
             sb.append( artifactId);
@@ -120,7 +381,86 @@ public class MetaDataHelper extends ComponentSupport  {
                 sb.append(baseVersion);
             }
         }
-        sb.append('/').append("maven-metadata.xml");
+        sb.append('/').append(METADATA_FILENAME);
         return new MavenPath(sb.toString(), null);
     }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetCreatedEvent event) {
+        invalidate(event);
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetUpdatedEvent event) {
+        invalidate(event);
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetDeletedEvent event) {
+        invalidate(event);
+    }
+
+    private void invalidate(final AssetEvent event) {
+        String name = event.getAsset().name();
+        if (name != null && name.endsWith(METADATA_FILENAME)) {
+            log.debug("invalidate : metadata {} from repository {} changed", name, event.getRepositoryName());
+            MetadataKey key = new MetadataKey(event.getRepositoryName(), name);
+            generations.incrementAndGet(key.stripe());
+            localCache.invalidate(key);
+        }
+    }
+
+    private static int weight(final Metadata metadata) {
+        if (metadata.getVersioning() != null && metadata.getVersioning().getVersions() != null) {
+            return 1 + metadata.getVersioning().getVersions().size();
+        }
+        return 1;
+    }
+
+    private static final class MergedMetadata {
+        private final String fingerprint;
+        private final Metadata metadata;
+
+        MergedMetadata(final String fingerprint, final Metadata metadata) {
+            this.fingerprint = fingerprint;
+            this.metadata = metadata;
+        }
+    }
+
+    private static final class MetadataKey {
+        private final String repositoryName;
+        private final String path;
+        private final int hash;
+
+        MetadataKey(final String repositoryName, final String path) {
+            this.repositoryName = repositoryName;
+            // asset names have no leading slash, maven path may
+            this.path = path.startsWith("/") ? path.substring(1) : path;
+            this.hash = Objects.hashCode(this.repositoryName, this.path);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MetadataKey)) {
+                return false;
+            }
+            MetadataKey that = (MetadataKey) o;
+            return repositoryName.equals(that.repositoryName) && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        int stripe() {
+            return (hash & Integer.MAX_VALUE) % GENERATION_STRIPES;
+        }
+    }
 }
@@ -0,0 +1,155 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Snapshot;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.xml.pull.MXParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull parser reading from a maven-metadata.xml stream only what is needed to resolve one kind of version, and
+ * stopping as soon as it has it. The result is a partial {@link Metadata}: the versions list is only filled when
+ * latest / release is missing and the versions have to be scanned instead.
+ */
+public class MetadataExtractor {
+
+    public enum Field {
+        LATEST, RELEASE, SNAPSHOT
+    }
+
+    private MetadataExtractor() {
+    }
+
+    public static Metadata extract(InputStream in, Field field) throws IOException, XmlPullParserException {
+        XmlPullParser parser = new MXParser();
+        parser.setInput(in, null);
+
+        Metadata metadata = new Metadata();
+        Versioning versioning = new Versioning();
+        metadata.setVersioning(versioning);
+
+        int depth = 0;
+        boolean inVersioning = false;
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                depth++;
+                String name = parser.getName();
+                if (depth == 2 && name.equals("versioning")) {
+                    inVersioning = true;
+                } else if (depth == 2 && name.equals("groupId")) {
+                    metadata.setGroupId(text(parser));
+                    depth--;
+                } else if (depth == 2 && name.equals("artifactId")) {
+                    metadata.setArtifactId(text(parser));
+                    depth--;
+                } else if (depth == 2 && name.equals("version")) {
+                    metadata.setVersion(text(parser));
+                    depth--;
+                } else if (depth == 3 && inVersioning && name.equals("latest")) {
+                    versioning.setLatest(text(parser));
+                    depth--;
+                    if (field == Field.LATEST && StringUtils.isNotEmpty(versioning.getLatest())) {
+                        return metadata;
+                    }
+                } else if (depth == 3 && inVersioning && name.equals("release")) {
+                    versioning.setRelease(text(parser));
+                    depth--;
+                    if (field == Field.RELEASE && StringUtils.isNotEmpty(versioning.getRelease())) {
+                        return metadata;
+                    }
+                } else if (depth == 3 && inVersioning && name.equals("versions")) {
+                    if (needsVersions(field, versioning)) {
+                        readVersions(parser, versioning);
+                    } else {
+                        skip(parser);
+                    }
+                    depth--;
+                } else if (depth == 3 && inVersioning && name.equals("snapshot")) {
+                    versioning.setSnapshot(readSnapshot(parser));
+                    depth--;
+                    if (field == Field.SNAPSHOT) {
+                        return metadata;
+                    }
+                } else if (depth >= 3) {
+                    // lastUpdated, snapshotVersions, plugins ...: not needed
+                    skip(parser);
+                    depth--;
+                }
+            } else if (eventType == XmlPullParser.END_TAG) {
+                if (depth == 2 && parser.getName().equals("versioning")) {
+                    inVersioning = false;
+                }
+                depth--;
+            }
+            eventType = parser.next();
+        }
+        return metadata;
+    }
+
+    private static boolean needsVersions(Field field, Versioning versioning) {
+        return (field == Field.LATEST && StringUtils.isEmpty(versioning.getLatest()))
+                || (field == Field.RELEASE && StringUtils.isEmpty(versioning.getRelease()));
+    }
+
+    private static void readVersions(XmlPullParser parser, Versioning versioning) throws IOException, XmlPullParserException {
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            if (parser.getName().equals("version")) {
+                versioning.addVersion(text(parser));
+            } else {
+                skip(parser);
+            }
+        }
+    }
+
+    private static Snapshot readSnapshot(XmlPullParser parser) throws IOException, XmlPullParserException {
+        Snapshot snapshot = new Snapshot();
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            String name = parser.getName();
+            if (name.equals("timestamp")) {
+                snapshot.setTimestamp(text(parser));
+            } else if (name.equals("buildNumber")) {
+                String buildNumber = text(parser);
+                try {
+                    snapshot.setBuildNumber(StringUtils.isEmpty(buildNumber) ? 0 : Integer.parseInt(buildNumber));
+                } catch (NumberFormatException e) {
+                    snapshot.setBuildNumber(0);
+                }
+            } else if (name.equals("localCopy")) {
+                snapshot.setLocalCopy(Boolean.parseBoolean(text(parser)));
+            } else {
+                skip(parser);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Text of the current element, the parser is left on its end tag.
+     */
+    private static String text(XmlPullParser parser) throws IOException, XmlPullParserException {
+        return parser.nextText().trim();
+    }
+
+    /**
+     * Skip the current element and its children, the parser is left on its end tag.
+     */
+    private static void skip(XmlPullParser parser) throws IOException, XmlPullParserException {
+        int depth = 1;
+        while (depth > 0) {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.START_TAG) {
+                depth++;
+            } else if (eventType == XmlPullParser.END_TAG) {
+                depth--;
+            } else if (eventType == XmlPullParser.END_DOCUMENT) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Plugin;
+import org.apache.maven.artifact.repository.metadata.Snapshot;
+import org.apache.maven.artifact.repository.metadata.SnapshotVersion;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.codehaus.plexus.util.StringUtils;
+import org.eclipse.aether.util.version.GenericVersionScheme;
+import org.eclipse.aether.version.InvalidVersionSpecificationException;
+import org.eclipse.aether.version.Version;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merge maven-metadata.xml of the members of a group the way the group view would: union of versions (in maven
+ * version order), highest latest and release, most recent snapshot.
+ */
+public class MetadataMerger {
+
+    private static final GenericVersionScheme VERSION_SCHEME = new GenericVersionScheme();
+
+    /**
+     * Maven version ordering, unparseable versions sort first.
+     */
+    public static final Comparator<String> VERSION_ORDER = (left, right) -> {
+        Version leftVersion = parseVersion(left);
+        Version rightVersion = parseVersion(right);
+        if (leftVersion == null || rightVersion == null) {
+            return leftVersion == null ? (rightVersion == null ? left.compareTo(right) : -1) : 1;
+        }
+        return leftVersion.compareTo(rightVersion);
+    };
+
+    private MetadataMerger() {
+    }
+
+    /**
+     * @param members metadata of the group members, in group order
+     * @return merged metadata, or null if there is nothing to merge
+     */
+    public static Metadata merge(final List<Metadata> members) {
+        if (members.isEmpty()) {
+            return null;
+        }
+        if (members.size() == 1) {
+            return members.get(0);
+        }
+
+        Metadata first = members.get(0);
+        Metadata merged = new Metadata();
+        merged.setGroupId(first.getGroupId());
+        merged.setArtifactId(first.getArtifactId());
+        merged.setVersion(first.getVersion());
+
+        Set<String> versions = new LinkedHashSet<>();
+        Map<String, Plugin> plugins = new LinkedHashMap<>();
+        String latest = null;
+        String release = null;
+        String lastUpdated = null;
+        Versioning snapshotVersioning = null;
+
+        for (Metadata member : members) {
+            for (Plugin plugin : member.getPlugins()) {
+                plugins.putIfAbsent(plugin.getPrefix(), plugin);
+            }
+            Versioning versioning = member.getVersioning();
+            if (versioning == null) {
+                continue;
+            }
+            versions.addAll(versioning.getVersions());
+            latest = highest(latest, versioning.getLatest());
+            release = highest(release, versioning.getRelease());
+            if (StringUtils.isNotEmpty(versioning.getLastUpdated())
+                    && (lastUpdated == null || versioning.getLastUpdated().compareTo(lastUpdated) > 0)) {
+                lastUpdated = versioning.getLastUpdated();
+            }
+            if (isNewerSnapshot(versioning.getSnapshot(), snapshotVersioning)) {
+                snapshotVersioning = versioning;
+            }
+        }
+
+        merged.setPlugins(new ArrayList<>(plugins.values()));
+
+        if (!versions.isEmpty() || latest != null || release != null || snapshotVersioning != null) {
+            Versioning versioning = new Versioning();
+            List<String> sortedVersions = new ArrayList<>(versions);
+            sortedVersions.sort(VERSION_ORDER);
+            versioning.setVersions(sortedVersions);
+            versioning.setLatest(latest);
+            versioning.setRelease(release);
+            versioning.setLastUpdated(lastUpdated);
+            if (snapshotVersioning != null) {
+                versioning.setSnapshot(snapshotVersioning.getSnapshot());
+                versioning.setSnapshotVersions(new ArrayList<SnapshotVersion>(snapshotVersioning.getSnapshotVersions()));
+            }
+            merged.setVersioning(versioning);
+        }
+
+        return merged;
+    }
+
+    private static String highest(final String current, final String candidate) {
+        if (StringUtils.isEmpty(candidate)) {
+            return current;
+        }
+        if (current == null || VERSION_ORDER.compare(candidate, current) > 0) {
+            return candidate;
+        }
+        return current;
+    }
+
+    private static boolean isNewerSnapshot(final Snapshot candidate, final Versioning current) {
+        if (candidate == null || StringUtils.isBlank(candidate.getTimestamp())) {
+            return false;
+        }
+        if (current == null) {
+            return true;
+        }
+        Snapshot snapshot = current.getSnapshot();
+        // timestamps are yyyyMMdd.HHmmss, text order is time order
+        int order = candidate.getTimestamp().compareTo(snapshot.getTimestamp());
+        return order > 0 || (order == 0 && candidate.getBuildNumber() > snapshot.getBuildNumber());
+    }
+
+    private static Version parseVersion(final String version) {
+        try {
+            return VERSION_SCHEME.parseVersion(version);
+        } catch (InvalidVersionSpecificationException e) {
+            return null;
+        }
+    }
+}
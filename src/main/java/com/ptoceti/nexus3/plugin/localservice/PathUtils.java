@@ -1,10 +1,22 @@
 package com.ptoceti.nexus3.plugin.localservice;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class PathUtils {
 
+    private static final int MAX_GROUP_PATHS = 10000;
+
+    /**
+     * groupId to group path, so that the same groupId is encoded only once.
+     */
+    private static final Cache<String, String> GROUP_PATHS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_GROUP_PATHS)
+            .build();
+
     public static String calculatePath( String groupId, String  artifactId, String baseVersion, String version, String classifier, String extension) {
         StringBuilder path = new StringBuilder("/");
-        path.append(groupId.replaceAll("(?m)(.)\\.", "$1/")); // replace all '.' except the first char
+        path.append(groupPath(groupId));
         path.append("/");
         path.append(artifactId);
         path.append("/");
@@ -25,4 +37,29 @@ public class PathUtils {
         return path.toString();
     }
 
+    /**
+     * Group path of a groupId: all '.' replaced with '/', except a leading one.
+     */
+    public static String groupPath(String groupId) {
+        String groupPath = GROUP_PATHS.getIfPresent(groupId);
+        if (groupPath == null) {
+            groupPath = encodeGroupPath(groupId);
+            GROUP_PATHS.put(groupId, groupPath);
+        }
+        return groupPath;
+    }
+
+    static String encodeGroupPath(String groupId) {
+        if (groupId.indexOf('.', 1) < 0) {
+            return groupId;
+        }
+        char[] chars = groupId.toCharArray();
+        for (int i = 1; i < chars.length; i++) {
+            if (chars[i] == '.') {
+                chars[i] = '/';
+            }
+        }
+        return new String(chars);
+    }
+
 }
@@ -0,0 +1,272 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.repository.Repository;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Guard reads of proxy metadata that go upstream: each read has a deadline (per repository), and a circuit breaker
+ * per repository opens after repeated failures or timeouts, failing reads fast until a trial read succeeds.
+ *
+ * The last good metadata of each path is kept. It is served stale when the deadline passes (the read goes on in the
+ * background and refreshes it), while the breaker is open, and while a refresh of the same path is in progress.
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class RemoteMetadataGuard extends StateGuardLifecycleSupport {
+
+    /**
+     * Read of the metadata upstream.
+     */
+    @FunctionalInterface
+    public interface Fetch {
+        /**
+         * @return the metadata, null if there is none upstream
+         * @throws IOException on a failure, counted by the breaker
+         */
+        Metadata fetch() throws IOException, XmlPullParserException;
+    }
+
+    private final int threads;
+    private final long timeoutMillis;
+    private final Map<String, Long> repositoryTimeouts;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final Cache<StaleKey, Metadata> stale;
+    private final ConcurrentMap<StaleKey, CompletableFuture<Metadata>> refreshes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    @Inject
+    public RemoteMetadataGuard(@Named("${nexus.localservice.remote.threads:-8}") final int threads,
+                               @Named("${nexus.localservice.remote.timeoutMillis:-10000}") final long timeoutMillis,
+                               @Named("${nexus.localservice.remote.repositoryTimeouts:-}") final String repositoryTimeouts,
+                               @Named("${nexus.localservice.remote.breaker.failures:-5}") final int failureThreshold,
+                               @Named("${nexus.localservice.remote.breaker.openSeconds:-30}") final long openSeconds,
+                               @Named("${nexus.localservice.remote.stale.maxEntries:-10000}") final long staleMaxEntries,
+                               @Named("${nexus.localservice.remote.stale.expireMinutes:-1440}") final long staleExpireMinutes) {
+        this.threads = threads;
+        this.timeoutMillis = timeoutMillis;
+        this.repositoryTimeouts = parseTimeouts(repositoryTimeouts);
+        this.failureThreshold = failureThreshold;
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+        this.stale = CacheBuilder.newBuilder()
+                .maximumSize(staleMaxEntries)
+                .expireAfterWrite(staleExpireMinutes, TimeUnit.MINUTES)
+                .build();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 32),
+                new ThreadFactoryBuilder().setNameFormat("localservice-remote-metadata-%d").setDaemon(true).build(),
+                // pool saturated or stopping: the request thread reads by itself
+                (task, pool) -> task.run());
+        log.info("RemoteMetadataGuard : started with {} threads, {} ms deadline, {} overrides, breaker opens {} s after {} failures",
+                threads, timeoutMillis, repositoryTimeouts.size(), TimeUnit.MILLISECONDS.toSeconds(openMillis), failureThreshold);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        executor = null;
+        refreshes.clear();
+    }
+
+    /**
+     * @param repository proxy repository
+     * @param path       metadata path
+     * @param field      field read, null for the whole metadata: partial metadata are kept apart
+     * @param fetch      reads the metadata upstream
+     * @return fresh metadata, else the last good one, null if none
+     */
+    public Metadata read(final Repository repository, final String path, final MetadataExtractor.Field field, final Fetch fetch) {
+        StaleKey key = new StaleKey(repository.getName(), path, field);
+        Metadata last = stale.getIfPresent(key);
+
+        CompletableFuture<Metadata> refresh = refreshes.get(key);
+        if (refresh != null && last != null) {
+            log.debug("read : refresh of {} in {} in progress, serving stale metadata", path, repository.getName());
+            return last;
+        }
+        if (refresh == null) {
+            CircuitBreaker breaker = breakers.computeIfAbsent(repository.getName(), name -> new CircuitBreaker());
+            if (!breaker.allowRequest()) {
+                log.debug("read : breaker of {} open, serving {} metadata of {}", repository.getName(),
+                        last != null ? "stale" : "no", path);
+                return last;
+            }
+            refresh = refresh(repository, key, breaker, fetch);
+        }
+
+        long timeout = timeoutMillis(repository);
+        try {
+            return refresh.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.debug("read : {} in {} past its {} ms deadline, serving {} metadata", path, repository.getName(), timeout,
+                    last != null ? "stale" : "no");
+            // counted by the refresh, once for all the requests waiting for it
+        } catch (ExecutionException e) {
+            log.debug("read : error reading {} in {}, serving {} metadata: {}", path, repository.getName(),
+                    last != null ? "stale" : "no", e.getCause().toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return last;
+    }
+
+    /**
+     * Start reading upstream, unless a read of the same path is already in progress. The last good metadata is
+     * updated when the read completes, even if no request waits for it anymore. The read counts once for the breaker:
+     * as a failure when it fails or takes longer than the deadline.
+     */
+    private CompletableFuture<Metadata> refresh(final Repository repository, final StaleKey key, final CircuitBreaker breaker, final Fetch fetch) {
+        CompletableFuture<Metadata> refresh = new CompletableFuture<>();
+        CompletableFuture<Metadata> inProgress = refreshes.putIfAbsent(key, refresh);
+        if (inProgress != null) {
+            return inProgress;
+        }
+        long timeout = timeoutMillis(repository);
+        Runnable task = () -> {
+            long start = System.currentTimeMillis();
+            try {
+                Metadata metadata = fetch.fetch();
+                if (System.currentTimeMillis() - start > timeout) {
+                    breaker.failure(repository.getName());
+                } else {
+                    breaker.success();
+                }
+                if (metadata != null) {
+                    stale.put(key, metadata);
+                } else {
+                    stale.invalidate(key);
+                }
+                refresh.complete(metadata);
+            } catch (IOException | XmlPullParserException | RuntimeException e) {
+                breaker.failure(repository.getName());
+                refresh.completeExceptionally(e);
+            } finally {
+                refreshes.remove(key, refresh);
+            }
+        };
+        ExecutorService current = executor;
+        if (current != null) {
+            current.execute(task);
+        } else {
+            task.run();
+        }
+        return refresh;
+    }
+
+    private long timeoutMillis(final Repository repository) {
+        return repositoryTimeouts.getOrDefault(repository.getName(), timeoutMillis);
+    }
+
+    private static Map<String, Long> parseTimeouts(final String timeouts) {
+        Map<String, Long> parsed = new HashMap<>();
+        if (timeouts != null && !timeouts.trim().isEmpty()) {
+            Map<String, String> entries = Splitter.on(',').trimResults().omitEmptyStrings()
+                    .withKeyValueSeparator(Splitter.on('=').trimResults()).split(timeouts);
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                parsed.put(entry.getKey(), Long.parseLong(entry.getValue()));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Closed while reads succeed. Opens after {@code failureThreshold} failures in a row; once open for
+     * {@code openMillis}, one trial read is let through: success closes it, failure opens it again.
+     */
+    private final class CircuitBreaker {
+
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean trial = new AtomicBoolean();
+        private volatile long openUntil;
+
+        boolean allowRequest() {
+            if (failures.get() < failureThreshold) {
+                return true;
+            }
+            return System.currentTimeMillis() >= openUntil && trial.compareAndSet(false, true);
+        }
+
+        void success() {
+            failures.set(0);
+            trial.set(false);
+        }
+
+        void failure(final String repositoryName) {
+            int count = failures.incrementAndGet();
+            if (count >= failureThreshold) {
+                if (count == failureThreshold || trial.get()) {
+                    log.warn("failure : breaker of repository {} open for {} s", repositoryName,
+                            TimeUnit.MILLISECONDS.toSeconds(openMillis));
+                }
+                openUntil = System.currentTimeMillis() + openMillis;
+                trial.set(false);
+            }
+        }
+    }
+
+    private static final class StaleKey {
+        private final String repositoryName;
+        private final String path;
+        private final MetadataExtractor.Field field;
+
+        StaleKey(final String repositoryName, final String path, final MetadataExtractor.Field field) {
+            this.repositoryName = repositoryName;
+            this.path = path;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StaleKey)) {
+                return false;
+            }
+            StaleKey other = (StaleKey) o;
+            return repositoryName.equals(other.repositoryName) && path.equals(other.path) && field == other.field;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(repositoryName, path, field);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Run requests of suspended endpoints on a bounded pool instead of the Jetty request threads, so that database
+ * queries and loopback calls into Jetty do not hold request threads (a loopback call needs one to be served).
+ * Each request has a deadline to be computed by: past it the client gets a 503, and the request is cancelled if
+ * still queued or interrupted if running (work that neither blocks interruptibly nor checks for interruption runs on
+ * to its end, its result is then released). When the pool and its queue are full, requests are rejected with a 503
+ * right away. Requests run as the user (shiro subject) of the Jetty request.
+ *
+ * The container writes a resumed response on the thread resuming it: responses streaming content are resumed from an
+ * unbounded pool of their own, so that downloads neither hold the threads computing responses nor are capped beyond
+ * what Jetty accepts. The deadline does not apply to writing.
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class RequestExecutor extends StateGuardLifecycleSupport {
+
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private final int threads;
+    private final int queueSize;
+    private final long timeoutSeconds;
+
+    private ExecutorService executor;
+    private ExecutorService streamer;
+
+    @Inject
+    public RequestExecutor(@Named("${nexus.localservice.async.threads:-32}") final int threads,
+                           @Named("${nexus.localservice.async.queueSize:-512}") final int queueSize,
+                           @Named("${nexus.localservice.async.timeoutSeconds:-120}") final long timeoutSeconds) {
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("localservice-request-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        // one thread per download being written, as many as Jetty lets through
+        streamer = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("localservice-stream-%d").setDaemon(true).build());
+        log.info("RequestExecutor : started with {} threads, queue of {}, {} s deadline", threads, queueSize, timeoutSeconds);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdownNow();
+        streamer.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        streamer.awaitTermination(10, TimeUnit.SECONDS);
+        executor = null;
+        streamer = null;
+    }
+
+    /**
+     * Compute the response on the pool and resume the suspended response with it.
+     *
+     * @param asyncResponse suspended response of the request
+     * @param name          name of the request, for logs
+     * @param work          computes the response, in a pool thread
+     */
+    public void submit(final AsyncResponse asyncResponse, final String name, final Supplier<Response> work) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        AtomicReference<Future<?>> running = new AtomicReference<>();
+        asyncResponse.setTimeoutHandler(timedOut -> {
+            log.debug("submit : {} past its deadline", name);
+            if (timedOut.resume(unavailable())) {
+                Future<?> future = running.get();
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        });
+        asyncResponse.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+
+        ExecutorService current = executor;
+        if (current == null) {
+            asyncResponse.resume(unavailable());
+            return;
+        }
+        Runnable task = () -> run(asyncResponse, name, deadline, work);
+        // run as the user of the request: the repository view checks its permissions
+        Subject subject = ThreadContext.getSubject();
+        try {
+            running.set(current.submit(subject != null ? subject.associateWith(task) : task));
+        } catch (RejectedExecutionException e) {
+            log.debug("submit : {} rejected, pool saturated", name);
+            asyncResponse.resume(unavailable());
+        }
+    }
+
+    private void run(final AsyncResponse asyncResponse, final String name, final long deadline, final Supplier<Response> work) {
+        if (asyncResponse.isDone() || System.nanoTime() - deadline > 0) {
+            // timed out or cancelled while queued
+            log.debug("run : {} dropped, already answered", name);
+            return;
+        }
+        Response response;
+        try {
+            response = work.get();
+        } catch (RuntimeException | Error e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        if (!(response.getEntity() instanceof StreamingOutput)) {
+            resume(asyncResponse, name, response);
+            return;
+        }
+        ExecutorService current = streamer;
+        Runnable task = () -> resume(asyncResponse, name, response);
+        // the entity may still read content through the repository view
+        Subject subject = ThreadContext.getSubject();
+        try {
+            if (current == null) {
+                throw new RejectedExecutionException("stopped");
+            }
+            current.execute(subject != null ? subject.associateWith(task) : task);
+        } catch (RejectedExecutionException e) {
+            log.debug("run : {} rejected, streaming pool stopped", name);
+            close(name, response);
+            asyncResponse.resume(unavailable());
+        }
+    }
+
+    /**
+     * Resume with the response, written by the container on the calling thread.
+     */
+    private void resume(final AsyncResponse asyncResponse, final String name, final Response response) {
+        if (!asyncResponse.resume(response)) {
+            // answered meanwhile by the timeout: release what the response holds
+            log.debug("resume : {} completed past its deadline", name);
+            close(name, response);
+        }
+    }
+
+    private void close(final String name, final Response response) {
+        if (response.getEntity() instanceof Closeable) {
+            try {
+                ((Closeable) response.getEntity()).close();
+            } catch (IOException e) {
+                log.debug("close : could not close response of {}: {}", name, e.toString());
+            }
+        }
+    }
+
+    private static Response unavailable() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS).build();
+    }
+}
@@ -0,0 +1,231 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.storage.AssetCreatedEvent;
+import org.sonatype.nexus.repository.storage.AssetDeletedEvent;
+import org.sonatype.nexus.repository.storage.AssetEvent;
+import org.sonatype.nexus.repository.storage.AssetUpdatedEvent;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.types.ProxyType;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cache of requested version (LATEST, RELEASE, x-SNAPSHOT) to resolved version, per repository and groupId:artifactId.
+ * Negative results (nothing resolved) are cached too.
+ *
+ * Entries of hosted repositories (and groups of hosted repositories only) stay until maven-metadata.xml of the
+ * artifact changes. Entries of proxy repositories, and groups with proxy members, also expire after the proxy
+ * metadata max age.
+ *
+ * Entries are indexed by groupId/artifactId directory, so that a metadata change drops only the entries under it. A
+ * resolution that saw a change of its directory while it ran is not kept: it may come from the old metadata.
+ */
+@Named
+@Singleton
+public class ResolvedVersionCache extends ComponentSupport implements EventAware {
+
+    /**
+     * Compute the resolved version on cache miss, returns null when nothing resolves.
+     */
+    public interface Resolver {
+        String resolve() throws IOException, XmlPullParserException;
+    }
+
+    /**
+     * Generations of groupId/artifactId directories, bumped on each metadata change; striped by directory hash, so
+     * that a change of another directory of the same stripe only costs a resolution not kept.
+     */
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final Cache<VersionKey, ResolvedVersion> cache;
+
+    /**
+     * groupId/artifactId directory to the keys of its entries
+     */
+    private final ConcurrentMap<String, Set<VersionKey>> keysByPath = new ConcurrentHashMap<>();
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private final long expireMinutes;
+
+    @Inject
+    public ResolvedVersionCache(@Named("${nexus.localservice.version.cache.size:-10000}") final long size,
+                                @Named("${nexus.localservice.version.cache.expireMinutes:-1440}") final long expireMinutes) {
+        this.expireMinutes = expireMinutes;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+                .removalListener(this::removed)
+                .build();
+    }
+
+    public String get(final Repository repository, final String groupId, final String artifactId, final String version,
+                      final Resolver resolver) throws IOException, XmlPullParserException {
+        VersionKey key = new VersionKey(repository.getName(), groupId, artifactId, version);
+        long now = System.currentTimeMillis();
+
+        ResolvedVersion resolved = cache.getIfPresent(key);
+        if (resolved != null && resolved.expiresAt > now) {
+            log.debug("get : {}:{}:{} in repository {} resolved from cache to {}", groupId, artifactId, version, repository.getName(), resolved.version);
+            return resolved.version;
+        }
+
+        int stripe = stripe(key.artifactPath);
+        long generation = generations.get(stripe);
+        String resolvedVersion = resolver.resolve();
+
+        keysByPath.computeIfAbsent(key.artifactPath, path -> ConcurrentHashMap.newKeySet()).add(key);
+        cache.put(key, new ResolvedVersion(resolvedVersion, now + TimeUnit.MINUTES.toMillis(maxAgeMinutes(repository))));
+        // checked after the put: a change from now on finds the entry in the index
+        if (generations.get(stripe) != generation) {
+            log.debug("get : metadata of {}:{} changed while resolving {}, not kept", groupId, artifactId, version);
+            cache.invalidate(key);
+        }
+        return resolvedVersion;
+    }
+
+    /**
+     * Max age of entries for the repository: metadata max age of the proxy, smallest one of the proxy members of a
+     * group, and the cache expiry otherwise.
+     */
+    long maxAgeMinutes(final Repository repository) {
+        long maxAge = expireMinutes;
+        if (repository.getType().getValue().equals(ProxyType.NAME)) {
+            maxAge = Math.min(maxAge, MetaDataHelper.metadataMaxAgeMinutes(repository));
+        } else if (repository.getType().getValue().equals(GroupType.NAME)) {
+            for (Repository member : repository.facet(GroupFacet.class).leafMembers()) {
+                if (member.getType().getValue().equals(ProxyType.NAME)) {
+                    maxAge = Math.min(maxAge, MetaDataHelper.metadataMaxAgeMinutes(member));
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetCreatedEvent event) {
+        invalidate(event);
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetUpdatedEvent event) {
+        invalidate(event);
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AssetDeletedEvent event) {
+        invalidate(event);
+    }
+
+    /**
+     * Any change of a groupId:artifactId metadata, component or version level, in any repository drops the entries
+     * of that groupId:artifactId in all repositories: groups see the changes of their members.
+     */
+    private void invalidate(final AssetEvent event) {
+        String name = event.getAsset().name();
+        if (name == null || !name.endsWith(MetaDataHelper.METADATA_FILENAME)) {
+            return;
+        }
+        // groupId/artifactId/ for component metadata, groupId/artifactId/version/ for version metadata
+        String directory = name.substring(0, name.length() - MetaDataHelper.METADATA_FILENAME.length());
+        invalidate(directory);
+        int parent = directory.lastIndexOf('/', directory.length() - 2);
+        if (parent > 0) {
+            invalidate(directory.substring(0, parent + 1));
+        }
+    }
+
+    private void invalidate(final String artifactPath) {
+        generations.incrementAndGet(stripe(artifactPath));
+        Set<VersionKey> keys = keysByPath.remove(artifactPath);
+        if (keys != null) {
+            log.debug("invalidate : {} resolved versions under {}", keys.size(), artifactPath);
+            cache.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * Keep the index in step with entries evicted by size or expiry; invalidated entries are already out of it.
+     */
+    private void removed(final RemovalNotification<VersionKey, ResolvedVersion> notification) {
+        VersionKey key = notification.getKey();
+        if (notification.wasEvicted() && key != null) {
+            keysByPath.computeIfPresent(key.artifactPath, (path, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private static int stripe(final String artifactPath) {
+        return (artifactPath.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private static final class ResolvedVersion {
+        private final String version;
+        private final long expiresAt;
+
+        ResolvedVersion(final String version, final long expiresAt) {
+            this.version = version;
+            this.expiresAt = expiresAt < 0 ? Long.MAX_VALUE : expiresAt;
+        }
+    }
+
+    private static final class VersionKey {
+        private final String repositoryName;
+        private final String groupId;
+        private final String artifactId;
+        private final String version;
+        private final String artifactPath;
+        private final int hash;
+
+        VersionKey(final String repositoryName, final String groupId, final String artifactId, final String version) {
+            this.repositoryName = repositoryName;
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+            this.artifactPath = PathUtils.groupPath(groupId) + '/' + artifactId + '/';
+            this.hash = Objects.hashCode(repositoryName, groupId, artifactId, version);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof VersionKey)) {
+                return false;
+            }
+            VersionKey that = (VersionKey) o;
+            return repositoryName.equals(that.repositoryName) && groupId.equals(that.groupId)
+                    && artifactId.equals(that.artifactId) && version.equals(that.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesce identical concurrent computations: the first caller for a key computes the value, callers arriving with
+ * the same key while it runs wait for it and get the same value (or exception). Nothing is kept once the
+ * computation is done, this is not a cache.
+ *
+ * @param <K> key of the computation, with equals and hashCode
+ * @param <V> value computed
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param key         key of the computation
+     * @param computation computes the value, in the calling thread
+     * @param onCoalesced called when this call waits for the computation of another one, may be null
+     * @return value computed by this call, or by the identical call in flight
+     */
+    public V execute(final K key, final Supplier<V> computation, final Runnable onCoalesced) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = flights.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            if (onCoalesced != null) {
+                onCoalesced.run();
+            }
+            try {
+                return inFlight.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+
+        try {
+            V value = computation.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error ex) {
+            flight.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+}
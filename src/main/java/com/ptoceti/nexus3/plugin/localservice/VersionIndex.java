@@ -0,0 +1,351 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.manager.RepositoryCreatedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryDeletedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryManager;
+import org.sonatype.nexus.repository.storage.Bucket;
+import org.sonatype.nexus.repository.storage.Component;
+import org.sonatype.nexus.repository.storage.ComponentCreatedEvent;
+import org.sonatype.nexus.repository.storage.ComponentDeletedEvent;
+import org.sonatype.nexus.repository.storage.ComponentEvent;
+import org.sonatype.nexus.repository.storage.ComponentUpdatedEvent;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.types.GroupType;
+import org.sonatype.nexus.repository.types.HostedType;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.TASKS;
+import static org.sonatype.nexus.repository.maven.internal.Constants.SNAPSHOT_VERSION_SUFFIX;
+
+/**
+ * In memory index of the versions of each groupId:artifactId of the maven hosted repositories, so that LATEST,
+ * RELEASE and snapshot versions are resolved without reading maven-metadata.xml. Base versions are kept in maven
+ * version order, each with the versions of its components (the timestamped ones for a snapshot).
+ *
+ * Repositories are indexed from their components in the background at startup, and kept current from component
+ * events. Until a repository is indexed, and for proxy repositories (whose metadata knows versions not cached
+ * locally) and groups with proxy members, {@link #covers} is false and versions are to be taken from metadata.
+ * A repository with more than {@code maxArtifacts} groupId:artifactId is not indexed either, to bound the heap.
+ */
+@Named
+@Singleton
+// after the repositories are started
+@ManagedLifecycle(phase = TASKS)
+public class VersionIndex extends StateGuardLifecycleSupport implements EventAware {
+
+    private static final String MAVEN_FORMAT = "maven2";
+
+    private final RepositoryManager repositoryManager;
+
+    private final boolean enabled;
+
+    private final int maxArtifacts;
+
+    /**
+     * repository name to groupId:artifactId to base version to component versions
+     */
+    private final ConcurrentMap<String, RepositoryIndex> repositories = new ConcurrentHashMap<>();
+
+    private ExecutorService builder;
+
+    @Inject
+    public VersionIndex(final RepositoryManager repositoryManager,
+                        @Named("${nexus.localservice.versionIndex.enabled:-true}") final boolean enabled,
+                        @Named("${nexus.localservice.versionIndex.maxArtifacts:-100000}") final int maxArtifacts) {
+        this.repositoryManager = checkNotNull(repositoryManager);
+        this.enabled = enabled;
+        this.maxArtifacts = maxArtifacts;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (!enabled) {
+            log.info("VersionIndex : disabled");
+            return;
+        }
+        builder = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("localservice-version-index-%d").setDaemon(true).build());
+        for (Repository repository : repositoryManager.browse()) {
+            if (isIndexed(repository)) {
+                RepositoryIndex index = new RepositoryIndex(repository.getName());
+                repositories.put(repository.getName(), index);
+                builder.execute(() -> build(repository, index));
+            }
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (builder != null) {
+            builder.shutdownNow();
+            builder.awaitTermination(30, TimeUnit.SECONDS);
+            builder = null;
+        }
+        repositories.clear();
+    }
+
+    /**
+     * True when the versions of the repository (all leaf members for a group) are all indexed.
+     */
+    public boolean covers(final Repository repository) {
+        if (repository.getType().getValue().equals(GroupType.NAME)) {
+            List<Repository> members = repository.facet(GroupFacet.class).leafMembers();
+            for (Repository member : members) {
+                if (!covers(member)) {
+                    return false;
+                }
+            }
+            return !members.isEmpty();
+        }
+        RepositoryIndex index = repositories.get(repository.getName());
+        return index != null && index.ready && !index.overflowed;
+    }
+
+    /**
+     * Highest version, release or snapshot base version, null if none.
+     */
+    public String latest(final Repository repository, final String groupId, final String artifactId) {
+        String latest = null;
+        for (NavigableMap<String, Set<String>> versions : versions(repository, groupId, artifactId)) {
+            String version = lastKey(versions);
+            if (version != null && (latest == null || MetadataMerger.VERSION_ORDER.compare(version, latest) > 0)) {
+                latest = version;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Highest release version, null if none.
+     */
+    public String release(final Repository repository, final String groupId, final String artifactId) {
+        String release = null;
+        for (NavigableMap<String, Set<String>> versions : versions(repository, groupId, artifactId)) {
+            for (String version : versions.descendingKeySet()) {
+                if (!version.endsWith(SNAPSHOT_VERSION_SUFFIX)) {
+                    if (release == null || MetadataMerger.VERSION_ORDER.compare(version, release) > 0) {
+                        release = version;
+                    }
+                    break;
+                }
+            }
+        }
+        return release;
+    }
+
+    /**
+     * Most recent timestamped version of a snapshot base version, null if none.
+     */
+    public String snapshot(final Repository repository, final String groupId, final String artifactId, final String baseVersion) {
+        String snapshot = null;
+        for (NavigableMap<String, Set<String>> versions : versions(repository, groupId, artifactId)) {
+            Set<String> componentVersions = versions.get(baseVersion);
+            if (componentVersions == null) {
+                continue;
+            }
+            for (String version : componentVersions) {
+                if (snapshot == null || MetadataMerger.VERSION_ORDER.compare(version, snapshot) > 0) {
+                    snapshot = version;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private List<NavigableMap<String, Set<String>>> versions(final Repository repository, final String groupId, final String artifactId) {
+        String key = key(groupId, artifactId);
+        if (repository.getType().getValue().equals(GroupType.NAME)) {
+            List<Repository> members = repository.facet(GroupFacet.class).leafMembers();
+            List<NavigableMap<String, Set<String>>> versions = new ArrayList<>(members.size());
+            for (Repository member : members) {
+                RepositoryIndex index = repositories.get(member.getName());
+                NavigableMap<String, Set<String>> memberVersions = index != null ? index.artifacts.get(key) : null;
+                if (memberVersions != null) {
+                    versions.add(memberVersions);
+                }
+            }
+            return versions;
+        }
+        RepositoryIndex index = repositories.get(repository.getName());
+        NavigableMap<String, Set<String>> versions = index != null ? index.artifacts.get(key) : null;
+        return versions != null ? Collections.singletonList(versions) : Collections.emptyList();
+    }
+
+    private static String lastKey(final NavigableMap<String, Set<String>> versions) {
+        Map.Entry<String, Set<String>> last = versions.lastEntry();
+        return last != null ? last.getKey() : null;
+    }
+
+    private void build(final Repository repository, final RepositoryIndex index) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        try {
+            StorageTx tx = repository.facet(StorageFacet.class).txSupplier().get();
+            try {
+                tx.begin();
+                Bucket bucket = tx.findBucket(repository);
+                for (Component component : tx.browseComponents(bucket)) {
+                    if (Thread.currentThread().isInterrupted() || index.overflowed) {
+                        return;
+                    }
+                    index.add(component);
+                    count++;
+                }
+            } finally {
+                tx.close();
+            }
+            index.ready = true;
+            log.info("build : indexed {} components of repository {} in {} ms", count, repository.getName(),
+                    System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            // versions of this repository keep coming from metadata
+            log.warn("build : could not index repository {}: {}", repository.getName(), e.toString());
+        }
+    }
+
+    private static boolean isIndexed(final Repository repository) {
+        return repository.getFormat().getValue().equals(MAVEN_FORMAT)
+                && repository.getType().getValue().equals(HostedType.NAME);
+    }
+
+    private static String key(final String groupId, final String artifactId) {
+        return groupId + ':' + artifactId;
+    }
+
+    private static String baseVersion(final Component component) {
+        if (component.group() == null || component.name() == null || component.version() == null) {
+            return null;
+        }
+        String baseVersion = component.formatAttributes().get("baseVersion", String.class);
+        return baseVersion != null ? baseVersion : component.version();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final ComponentCreatedEvent event) {
+        RepositoryIndex index = index(event);
+        if (index != null) {
+            index.add(event.getComponent());
+        }
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final ComponentUpdatedEvent event) {
+        RepositoryIndex index = index(event);
+        if (index != null) {
+            index.add(event.getComponent());
+        }
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final ComponentDeletedEvent event) {
+        RepositoryIndex index = index(event);
+        if (index != null) {
+            index.remove(event.getComponent());
+        }
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryCreatedEvent event) {
+        if (enabled && isIndexed(event.getRepository())) {
+            // nothing to browse in a new repository
+            RepositoryIndex index = new RepositoryIndex(event.getRepository().getName());
+            index.ready = true;
+            repositories.putIfAbsent(event.getRepository().getName(), index);
+        }
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryDeletedEvent event) {
+        repositories.remove(event.getRepository().getName());
+    }
+
+    private RepositoryIndex index(final ComponentEvent event) {
+        return event.getRepositoryName() != null ? repositories.get(event.getRepositoryName()) : null;
+    }
+
+    /**
+     * Versions of one repository. Adding and removing a component are idempotent, so that events received while the
+     * repository is browsed do not leave the index off. A groupId:artifactId goes when its last version does; once
+     * over {@link #maxArtifacts} the index is dropped and the repository left to metadata.
+     */
+    private final class RepositoryIndex {
+
+        private final String repositoryName;
+
+        private final ConcurrentMap<String, NavigableMap<String, Set<String>>> artifacts = new ConcurrentHashMap<>();
+
+        private volatile boolean ready;
+
+        private volatile boolean overflowed;
+
+        RepositoryIndex(final String repositoryName) {
+            this.repositoryName = repositoryName;
+        }
+
+        void add(final Component component) {
+            String baseVersion = baseVersion(component);
+            if (baseVersion == null || overflowed) {
+                return;
+            }
+            String key = key(component.group(), component.name());
+            if (!artifacts.containsKey(key) && artifacts.size() >= maxArtifacts) {
+                overflowed = true;
+                artifacts.clear();
+                log.warn("add : repository {} has more than {} artifacts, its versions come from metadata",
+                        repositoryName, maxArtifacts);
+                return;
+            }
+            // within compute: not lost to a concurrent removal of the last version
+            artifacts.compute(key, (artifact, versions) -> {
+                NavigableMap<String, Set<String>> current = versions != null ? versions
+                        : new ConcurrentSkipListMap<>(MetadataMerger.VERSION_ORDER);
+                current.computeIfAbsent(baseVersion, version -> ConcurrentHashMap.newKeySet()).add(component.version());
+                return current;
+            });
+        }
+
+        void remove(final Component component) {
+            String baseVersion = baseVersion(component);
+            if (baseVersion == null) {
+                return;
+            }
+            artifacts.computeIfPresent(key(component.group(), component.name()), (artifact, versions) -> {
+                versions.computeIfPresent(baseVersion, (version, componentVersions) -> {
+                    componentVersions.remove(component.version());
+                    return componentVersions.isEmpty() ? null : componentVersions;
+                });
+                return versions.isEmpty() ? null : versions;
+            });
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.goodies.testsupport.TestSupport;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Archives written by {@link ContentArchiver}, read back with commons-compress and the JDK zip reader.
+ */
+public class ContentArchiverTest extends TestSupport {
+
+    private static final String SHORT_NAME = "org/example/demo/1.0/demo-1.0.jar";
+
+    // over 100 bytes, split into the prefix field
+    private static final String LONG_NAME = "org/example/" + Strings.repeat("deep/", 20) + "demo/1.0/demo-1.0-sources.jar";
+
+    // a last segment over 100 bytes cannot be split
+    private static final String UNSUPPORTED_NAME = "org/example/demo/1.0/" + Strings.repeat("x", 120) + ".jar";
+
+    // not in the archive
+    private static final String ABSENT_LABEL = "org.example:absent:1.0";
+
+    // no Content-Length, e.g. proxy content not cached yet
+    private static final String UNSIZED_NAME = "org/example/demo/1.0/demo-1.0.pom";
+
+    private ContentArchiver underTest;
+
+    private Map<String, byte[]> contents;
+
+    @Before
+    public void setUp() {
+        // not started: lookups run on the writer thread
+        underTest = new ContentArchiver(1, 2);
+        contents = new LinkedHashMap<>();
+        contents.put(SHORT_NAME, "short content".getBytes(StandardCharsets.UTF_8));
+        contents.put(LONG_NAME, new byte[1000]);
+        contents.put(ABSENT_LABEL, null);
+        contents.put(UNSUPPORTED_NAME, "unsupported".getBytes(StandardCharsets.UTF_8));
+        contents.put(UNSIZED_NAME, "<project/>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tarReadsBack() throws IOException {
+        byte[] archive = write(ContentArchiver.Format.TAR);
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(archive))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                byte[] content = ByteStreams.toByteArray(tar);
+                assertThat(entry.getSize(), is((long) content.length));
+                read.put(entry.getName(), content);
+            }
+        }
+
+        assertThat(read.keySet(), contains(SHORT_NAME, LONG_NAME, ContentArchiver.MISSING_ENTRY));
+        assertThat(read.get(SHORT_NAME), equalTo(contents.get(SHORT_NAME)));
+        assertThat(read.get(LONG_NAME), equalTo(contents.get(LONG_NAME)));
+        String missing = new String(read.get(ContentArchiver.MISSING_ENTRY), StandardCharsets.UTF_8);
+        assertThat(missing, containsString(ABSENT_LABEL + "\n"));
+        assertThat(missing, containsString(UNSUPPORTED_NAME));
+        assertThat(missing, containsString("size unknown"));
+        assertThat(missing, containsString(UNSIZED_NAME));
+    }
+
+    @Test
+    public void zipReadsBack() throws IOException {
+        byte[] archive = write(ContentArchiver.Format.ZIP);
+
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                read.put(entry.getName(), ByteStreams.toByteArray(zip));
+            }
+        }
+
+        // zip has no name limit
+        assertThat(read.keySet(), contains(SHORT_NAME, LONG_NAME, UNSUPPORTED_NAME, UNSIZED_NAME, ContentArchiver.MISSING_ENTRY));
+        assertThat(read.get(UNSUPPORTED_NAME), equalTo(contents.get(UNSUPPORTED_NAME)));
+        assertThat(read.get(UNSIZED_NAME), equalTo(contents.get(UNSIZED_NAME)));
+        assertThat(new String(read.get(ContentArchiver.MISSING_ENTRY), StandardCharsets.UTF_8), is(ABSENT_LABEL + "\n"));
+    }
+
+    @Test
+    public void fitsTar() {
+        assertThat(ContentArchiver.fitsTar(SHORT_NAME, 10), is(true));
+        assertThat(ContentArchiver.fitsTar(LONG_NAME, 10), is(true));
+        assertThat(ContentArchiver.fitsTar(UNSUPPORTED_NAME, 10), is(false));
+        assertThat(ContentArchiver.fitsTar(SHORT_NAME, 1L << 33), is(false));
+    }
+
+    private byte[] write(final ContentArchiver.Format format) throws IOException {
+        List<String> labels = Arrays.asList(contents.keySet().toArray(new String[0]));
+        StreamingOutput archive = underTest.archive(format, labels, index -> {
+            String name = labels.get(index);
+            byte[] content = contents.get(name);
+            return content != null ? new ContentArchiver.Entry(name, response(content, !name.equals(UNSIZED_NAME))) : null;
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.write(out);
+        return out.toByteArray();
+    }
+
+    private static Response response(final byte[] content, final boolean sized) {
+        Response response = mock(Response.class);
+        StreamingOutput entity = out -> out.write(content);
+        when(response.getEntity()).thenReturn(entity);
+        when(response.getHeaderString(HttpHeaders.CONTENT_LENGTH)).thenReturn(sized ? Integer.toString(content.length) : null);
+        return response;
+    }
+}
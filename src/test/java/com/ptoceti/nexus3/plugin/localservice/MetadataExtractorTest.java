@@ -0,0 +1,94 @@
+package com.ptoceti.nexus3.plugin.localservice;
+
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.junit.Test;
+import org.sonatype.goodies.testsupport.TestSupport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * {@link MetadataExtractor} against the full {@link MetadataXpp3Reader} parse, on metadata fixtures (copies of the
+ * benchmark ones): what it extracts for a field is what a full parse gives.
+ */
+public class MetadataExtractorTest extends TestSupport {
+
+    private static final String FIXTURES = "/fixtures/";
+
+    @Test
+    public void smallMetadata() throws Exception {
+        checkAllFields("small-maven-metadata.xml");
+    }
+
+    @Test
+    public void largeMetadata() throws Exception {
+        checkAllFields("large-maven-metadata.xml");
+    }
+
+    @Test
+    public void largeMetadataWithoutLatest() throws Exception {
+        checkAllFields("large-nolatest-maven-metadata.xml");
+    }
+
+    @Test
+    public void snapshotMetadata() throws Exception {
+        checkAllFields("snapshot-maven-metadata.xml");
+    }
+
+    private void checkAllFields(final String fixture) throws IOException, XmlPullParserException {
+        Metadata full;
+        try (InputStream in = open(fixture)) {
+            full = new MetadataXpp3Reader().read(in, false);
+        }
+
+        Metadata latest = extract(fixture, MetadataExtractor.Field.LATEST);
+        assertThat(latest.getGroupId(), is(full.getGroupId()));
+        assertThat(latest.getArtifactId(), is(full.getArtifactId()));
+        if (StringUtils.isNotEmpty(full.getVersioning().getLatest())) {
+            assertThat(latest.getVersioning().getLatest(), is(full.getVersioning().getLatest()));
+        } else {
+            // scanned instead
+            assertThat(latest.getVersioning().getVersions(), equalTo(full.getVersioning().getVersions()));
+        }
+
+        Metadata release = extract(fixture, MetadataExtractor.Field.RELEASE);
+        if (StringUtils.isNotEmpty(full.getVersioning().getRelease())) {
+            assertThat(release.getVersioning().getRelease(), is(full.getVersioning().getRelease()));
+        } else {
+            assertThat(release.getVersioning().getVersions(), equalTo(full.getVersioning().getVersions()));
+        }
+
+        Metadata snapshot = extract(fixture, MetadataExtractor.Field.SNAPSHOT);
+        assertThat(snapshot.getVersion(), is(full.getVersion()));
+        if (full.getVersioning().getSnapshot() != null) {
+            assertThat(snapshot.getVersioning().getSnapshot(), notNullValue());
+            assertThat(snapshot.getVersioning().getSnapshot().getTimestamp(), is(full.getVersioning().getSnapshot().getTimestamp()));
+            assertThat(snapshot.getVersioning().getSnapshot().getBuildNumber(), is(full.getVersioning().getSnapshot().getBuildNumber()));
+        } else {
+            assertThat(snapshot.getVersioning().getSnapshot(), nullValue());
+        }
+    }
+
+    private Metadata extract(final String fixture, final MetadataExtractor.Field field) throws IOException, XmlPullParserException {
+        try (InputStream in = open(fixture)) {
+            return MetadataExtractor.extract(in, field);
+        }
+    }
+
+    private InputStream open(final String fixture) throws IOException {
+        InputStream in = getClass().getResourceAsStream(FIXTURES + fixture);
+        if (in == null) {
+            throw new IOException("fixture not found: " + fixture);
+        }
+        return in;
+    }
+}